@@ -0,0 +1,154 @@
+package sample;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Builds the representative programs which the benchmarks run. Every program is a countdown loop: the counter is
+ * pushed in the top left corner, then the instruction pointer walks south down the loop body, east, north back up the
+ * return column and west into the body again, until the counter reaches 0 and a conditional jump throws the
+ * instruction pointer off the bottom of the program.
+ */
+class BenchmarkPrograms {
+    private static final int NOP = 0x000000;
+    private static final int SOUTH = cell(1, 0, 1);
+    private static final int NORTH = cell(1, 0, 3);
+    private static final int WEST = cell(1, 0, 2);
+    private static final int EAST = cell(1, 0, 0);
+    private static final int DUP = cell(10, 0, 1);
+    private static final int POP = cell(10, 0, 0);
+    private static final int SWAP = cell(10, 0, 2);
+    private static final int EXIT = cell(3, 255, 255); // conditional jump far past the edge of the program
+    private static final int SUB = cell(11, 0, 1);
+    private static final int MUL = cell(11, 0, 2);
+    private static final int ADD = cell(11, 0, 0);
+    private static final int XOR = cell(11, 0, 7);
+    private static final int STORE = cell(5, 0, 0);
+    private static final int LOAD = cell(5, 0, 1);
+    private static final int MP_INC = cell(5, 0, 4);
+    private static final int PRINT_INT = cell(12, 0, 2);
+    private static final int PRINT_CHAR = cell(12, 0, 0);
+    private static final int CALL = cell(4, 0, 1);
+    private static final int RETURN = cell(4, 0, 2);
+
+    static int cell(int r, int g, int b) {
+        return (r << 16) | (g << 8) | b;
+    }
+
+    static int push(int value) {
+        return cell(8, value >> 8, value & 0xFF);
+    }
+
+    static int push_two(int g, int b) {
+        return cell(9, g, b);
+    }
+
+    /**
+     * A loop which only does arithmetic on the stack.
+     */
+    static Pixels arithmetic_loop(int iterations) {
+        return countdown_loop(iterations, push_two(3, 5), MUL, push(7), XOR, POP);
+    }
+
+    /**
+     * A loop which writes the counter into a fresh memory cell on every iteration and reads it back, walking across
+     * many pages of memory.
+     */
+    static Pixels memory_scan(int iterations) {
+        return countdown_loop(iterations, DUP, STORE, LOAD, LOAD, ADD, STORE, MP_INC);
+    }
+
+    /**
+     * A loop which prints the counter and a newline on every iteration.
+     */
+    static Pixels output_loop(int iterations) {
+        return countdown_loop(iterations, DUP, PRINT_INT, push(10), PRINT_CHAR);
+    }
+
+    /**
+     * A function which calls itself until the counter it is given reaches 0 and then returns all the way back up.
+     * Row 0 pushes the depth and makes the first call, row 1 is the function.
+     */
+    static Pixels recursion(int depth) {
+        final int width = 10;
+        final int[] rgb = new int[width * 2];
+        Arrays.fill(rgb, NOP);
+
+        rgb[0] = push(depth);
+        rgb[1] = push_two(0, 1); // calls land one cell east of (0, 1)
+        rgb[2] = CALL;
+
+        final int row = width;
+        rgb[row + 1] = DUP;
+        rgb[row + 2] = cell(3, 0, 5); // jump to the return when the counter is 0
+        rgb[row + 3] = push(1);
+        rgb[row + 4] = SWAP;
+        rgb[row + 5] = SUB;
+        rgb[row + 6] = push_two(0, 1);
+        rgb[row + 7] = CALL;
+        rgb[row + 8] = RETURN;
+
+        return new Pixels(rgb, width);
+    }
+
+    /**
+     * A random program, which is only useful for measuring how long it takes to decode.
+     */
+    static Pixels random(int width, int height, long seed) {
+        final java.util.Random random = new Random(seed);
+        final int[] rgb = new int[width * height];
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = random.nextInt(1 << 24);
+        }
+
+        return new Pixels(rgb, width);
+    }
+
+    private static Pixels countdown_loop(int iterations, int... body) {
+        final int width = 5;
+        final int height = body.length + 7;
+        final int[] rgb = new int[width * height];
+        Arrays.fill(rgb, NOP);
+
+        // the counter is the product of two constants so that it can be larger than a single cell can hold
+        final int factor = (int) Math.ceil(Math.sqrt(iterations));
+        rgb[0] = push(factor);
+        rgb[1] = push(Math.max(1, iterations / factor));
+        rgb[2] = MUL;
+        rgb[3] = SOUTH;
+
+        int y = 1;
+        rgb[y++ * width + 3] = DUP;
+        rgb[y++ * width + 3] = EXIT;
+        for (final int op : body) {
+            rgb[y++ * width + 3] = op;
+        }
+        rgb[y++ * width + 3] = push(1);
+        rgb[y++ * width + 3] = SWAP;
+        rgb[y++ * width + 3] = SUB;
+        rgb[y * width + 3] = EAST;
+        rgb[y * width + 4] = NORTH;
+        rgb[4] = WEST;
+
+        return new Pixels(rgb, width);
+    }
+
+    /**
+     * The pixels of a program, row by row, before they have been decoded.
+     */
+    static final class Pixels {
+        final int[] rgb;
+        final int width;
+        final int height;
+
+        Pixels(int[] rgb, int width) {
+            this.rgb = rgb;
+            this.width = width;
+            this.height = rgb.length / width;
+        }
+
+        MyceliumProgram decode() {
+            return new MyceliumProgram(rgb, width, height);
+        }
+    }
+}
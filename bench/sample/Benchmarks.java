@@ -0,0 +1,276 @@
+package sample;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmarks for the interpreter hot loop, the tracing JIT, program decoding and PNG loading and saving.
+ *
+ * Every benchmark reports how many units of work (interpreter steps, decoded cells, constructed interpreters) it gets
+ * through per second and how many bytes it allocates per unit, measured with the thread allocation counters. The
+ * results can be written out as CSV and compared against an earlier run, in which case the process exits with status
+ * 1 if any benchmark got slower by more than the tolerance.
+ *
+ * Usage: Benchmarks [--filter text] [--warmup n] [--iterations n] [--time ms] [--csv out.csv]
+ *                   [--baseline old.csv] [--tolerance 0.10]
+ */
+public class Benchmarks {
+    // results are written here so that the JIT can't throw the work away
+    static volatile long sink;
+
+    interface Workload {
+        /**
+         * Does one invocation of the benchmark.
+         * @return The number of units of work which were done.
+         */
+        long run() throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final String unit;
+        final double rate;
+        final double error;
+        final double bytes_per_unit;
+        final double bytes_per_second;
+
+        Result(String name, String unit, double rate, double error, double bytes_per_unit, double bytes_per_second) {
+            this.name = name;
+            this.unit = unit;
+            this.rate = rate;
+            this.error = error;
+            this.bytes_per_unit = bytes_per_unit;
+            this.bytes_per_second = bytes_per_second;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = parse_options(args);
+        final int warmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+        final int iterations = Integer.parseInt(options.getOrDefault("iterations", "5"));
+        final long time_ms = Long.parseLong(options.getOrDefault("time", "1000"));
+        final String filter = options.getOrDefault("filter", "");
+
+        final List<Result> results = new ArrayList<>();
+        for (final Map.Entry<String, Object[]> benchmark : benchmarks().entrySet()) {
+            if (!benchmark.getKey().contains(filter)) continue;
+
+            final String unit = (String) benchmark.getValue()[0];
+            final Workload workload = (Workload) benchmark.getValue()[1];
+            final Result result = measure(benchmark.getKey(), unit, workload, warmup, iterations, time_ms);
+            results.add(result);
+            System.out.println(String.format("%-24s %16.0f +- %-12.0f %s/s %12.2f B/%s %14.0f B/s",
+                    result.name, result.rate, result.error, result.unit,
+                    result.bytes_per_unit, result.unit, result.bytes_per_second));
+        }
+
+        if (options.containsKey("csv")) {
+            write_csv(options.get("csv"), results);
+        }
+
+        if (options.containsKey("baseline")) {
+            final double tolerance = Double.parseDouble(options.getOrDefault("tolerance", "0.10"));
+            if (!compare_to_baseline(options.get("baseline"), results, tolerance)) {
+                System.exit(1);
+            }
+        }
+    }
+
+    private static Map<String, Object[]> benchmarks() throws IOException {
+        final Map<String, Object[]> benchmarks = new LinkedHashMap<>();
+
+        final MyceliumProgram arithmetic = BenchmarkPrograms.arithmetic_loop(1_000_000).decode();
+        final MyceliumProgram recursion = BenchmarkPrograms.recursion(20_000).decode();
+        final MyceliumProgram memory = BenchmarkPrograms.memory_scan(200_000).decode();
+        final MyceliumProgram output = BenchmarkPrograms.output_loop(200_000).decode();
+
+        benchmarks.put("next.arithmetic", new Object[]{"step", (Workload) () -> run_to_completion(arithmetic)});
+        benchmarks.put("next.recursion", new Object[]{"step", (Workload) () -> run_to_completion(recursion)});
+        benchmarks.put("next.memory", new Object[]{"step", (Workload) () -> run_to_completion(memory)});
+        benchmarks.put("next.output", new Object[]{"step", (Workload) () -> run_to_completion(output)});
+
+        benchmarks.put("run.arithmetic", new Object[]{"step", (Workload) () -> {
+            final MyceliumInterpreter interpreter = new MyceliumInterpreter(arithmetic, OutputSink.discard());
+            return interpreter.run_until_halt().steps;
+        }});
+        benchmarks.put("run.recursion", new Object[]{"step", (Workload) () -> {
+            final MyceliumInterpreter interpreter = new MyceliumInterpreter(recursion, OutputSink.discard());
+            return interpreter.run_until_halt().steps;
+        }});
+
+        benchmarks.put("jit.arithmetic", new Object[]{"step", (Workload) () -> {
+            final MyceliumInterpreter interpreter = new MyceliumInterpreter(arithmetic, OutputSink.discard());
+            return new TracingEngine(interpreter).run_until_halt().steps;
+        }});
+        benchmarks.put("jit.memory", new Object[]{"step", (Workload) () -> {
+            final MyceliumInterpreter interpreter = new MyceliumInterpreter(memory, OutputSink.discard());
+            return new TracingEngine(interpreter).run_until_halt().steps;
+        }});
+        benchmarks.put("jit.output", new Object[]{"step", (Workload) () -> {
+            final MyceliumInterpreter interpreter = new MyceliumInterpreter(output, OutputSink.discard());
+            return new TracingEngine(interpreter).run_until_halt().steps;
+        }});
+
+        final BenchmarkPrograms.Pixels large = BenchmarkPrograms.random(1000, 1000, 42);
+        benchmarks.put("construct.decode", new Object[]{"cell", (Workload) () -> {
+            final MyceliumProgram program = large.decode();
+            sink += program.cells[program.cells.length - 1];
+            return (long) program.width * program.height;
+        }});
+        benchmarks.put("construct.interpreter", new Object[]{"op", (Workload) () -> {
+            final MyceliumInterpreter interpreter = new MyceliumInterpreter(arithmetic, OutputSink.discard());
+            sink += interpreter.img_width;
+            return 1;
+        }});
+
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(MyceliumProgram.to_image(large.rgb, large.width, large.height), "png", png);
+        final byte[] png_bytes = png.toByteArray();
+        benchmarks.put("png.load", new Object[]{"cell", (Workload) () -> {
+            final MyceliumProgram program = MyceliumProgram.from_image(
+                    ImageIO.read(new ByteArrayInputStream(png_bytes)));
+            return (long) program.width * program.height;
+        }});
+        benchmarks.put("png.save", new Object[]{"cell", (Workload) () -> {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(png_bytes.length);
+            ImageIO.write(MyceliumProgram.to_image(large.rgb, large.width, large.height), "png", out);
+            sink += out.size();
+            return (long) large.width * large.height;
+        }});
+
+        return benchmarks;
+    }
+
+    private static long run_to_completion(MyceliumProgram program) {
+        final MyceliumInterpreter interpreter = new MyceliumInterpreter(program, OutputSink.discard());
+
+        while (interpreter.next()) {
+            // run until the instruction pointer leaves the program
+        }
+        interpreter.output.flush();
+
+        sink += interpreter.output.chars_printed() + interpreter.stack.size();
+        return interpreter.steps;
+    }
+
+    private static Result measure(String name, String unit, Workload workload, int warmup, int iterations,
+                                  long time_ms) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            run_iteration(workload, time_ms);
+        }
+
+        final double[] rates = new double[iterations];
+        long total_units = 0;
+        long total_bytes = 0;
+        long total_nanos = 0;
+        for (int i = 0; i < iterations; i++) {
+            final long[] iteration = run_iteration(workload, time_ms);
+            rates[i] = iteration[0] / (iteration[2] / 1e9);
+            total_units += iteration[0];
+            total_bytes += iteration[1];
+            total_nanos += iteration[2];
+        }
+
+        double mean = 0;
+        for (final double rate : rates) mean += rate;
+        mean /= iterations;
+
+        double variance = 0;
+        for (final double rate : rates) variance += (rate - mean) * (rate - mean);
+        final double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+        return new Result(name, unit, mean, error,
+                total_bytes < 0 ? -1 : (double) total_bytes / total_units,
+                total_bytes < 0 ? -1 : total_bytes / (total_nanos / 1e9));
+    }
+
+    /**
+     * Runs the workload over and over until the time is up.
+     * @return The number of units of work done, the number of bytes allocated (or -1 if the JVM can't tell) and the
+     * number of nanoseconds it took.
+     */
+    private static long[] run_iteration(Workload workload, long time_ms) throws Exception {
+        final long deadline = System.nanoTime() + time_ms * 1_000_000;
+        final long allocated_before = allocated_bytes();
+        final long start = System.nanoTime();
+
+        long units = 0;
+        long now;
+        do {
+            units += workload.run();
+            now = System.nanoTime();
+        } while (now < deadline);
+
+        final long allocated_after = allocated_bytes();
+        final long allocated = allocated_before < 0 ? -1 : allocated_after - allocated_before;
+        return new long[]{units, allocated, now - start};
+    }
+
+    private static long allocated_bytes() {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return -1;
+    }
+
+    private static void write_csv(String path, List<Result> results) throws IOException {
+        final StringBuilder csv = new StringBuilder("benchmark,unit,rate,error,bytes_per_unit,bytes_per_second\n");
+        for (final Result result : results) {
+            csv.append(String.format("%s,%s,%.1f,%.1f,%.3f,%.1f%n", result.name, result.unit, result.rate,
+                    result.error, result.bytes_per_unit, result.bytes_per_second));
+        }
+
+        Files.write(Paths.get(path), csv.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return Whether every benchmark which is also in the baseline is at most the tolerance slower than it was.
+     */
+    private static boolean compare_to_baseline(String path, List<Result> results, double tolerance)
+            throws IOException {
+        final Map<String, Double> baseline = new HashMap<>();
+        final List<String> lines = Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8);
+        for (final String line : lines.subList(1, lines.size())) {
+            final String[] columns = line.split(",");
+            baseline.put(columns[0], Double.parseDouble(columns[2]));
+        }
+
+        boolean passed = true;
+        for (final Result result : results) {
+            final Double old_rate = baseline.get(result.name);
+            if (old_rate == null) continue;
+
+            final double change = result.rate / old_rate - 1;
+            if (change < -tolerance) {
+                System.out.println(String.format("REGRESSION %s: %.0f -> %.0f %s/s (%+.1f%%)",
+                        result.name, old_rate, result.rate, result.unit, change * 100));
+                passed = false;
+            }
+        }
+
+        return passed;
+    }
+
+    private static Map<String, String> parse_options(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) throw new IllegalArgumentException("unexpected argument " + args[i]);
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        return options;
+    }
+}
@@ -0,0 +1,116 @@
+package sample;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The metrics of every interpreter in the process, registered as the MBean sample:type=Interpreters when the first
+ * {@link InterpreterMetrics} are. The totals are added up from the open interpreters' metrics whenever they are read,
+ * along with what the closed ones counted.
+ */
+class AggregateMetrics implements AggregateMetricsMXBean {
+    private static AggregateMetrics instance = null;
+
+    private final Set<InterpreterMetrics> open;
+    private final AtomicLong closed_count;
+    private final AtomicLong closed_steps;
+    private final AtomicLong closed_output_chars;
+    private final AtomicLong closed_peak_stack_depth;
+    // how many runs have stopped for each reason, indexed by its ordinal
+    private final AtomicLongArray terminations;
+
+    private AggregateMetrics() {
+        this.open = ConcurrentHashMap.newKeySet();
+        this.closed_count = new AtomicLong();
+        this.closed_steps = new AtomicLong();
+        this.closed_output_chars = new AtomicLong();
+        this.closed_peak_stack_depth = new AtomicLong();
+        this.terminations = new AtomicLongArray(RunResult.Reason.values().length);
+    }
+
+    /**
+     * @return The aggregate metrics, registering them if they haven't been already.
+     */
+    static synchronized AggregateMetrics get() throws JMException {
+        if (instance == null) {
+            final AggregateMetrics metrics = new AggregateMetrics();
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("sample:type=Interpreters"));
+            instance = metrics;
+        }
+
+        return instance;
+    }
+
+    void open(InterpreterMetrics metrics) {
+        open.add(metrics);
+    }
+
+    void close(InterpreterMetrics metrics) {
+        if (!open.remove(metrics)) return;
+
+        closed_count.incrementAndGet();
+        closed_steps.addAndGet(metrics.getSteps());
+        closed_output_chars.addAndGet(metrics.getOutputChars());
+        closed_peak_stack_depth.accumulateAndGet(metrics.getPeakStackDepth(), Math::max);
+    }
+
+    void run_stopped(RunResult.Reason reason) {
+        terminations.incrementAndGet(reason.ordinal());
+    }
+
+    @Override
+    public int getOpenInterpreters() {
+        return open.size();
+    }
+
+    @Override
+    public long getClosedInterpreters() {
+        return closed_count.get();
+    }
+
+    @Override
+    public long getTotalSteps() {
+        long steps = closed_steps.get();
+        for (final InterpreterMetrics metrics : open) steps += metrics.getSteps();
+        return steps;
+    }
+
+    @Override
+    public double getStepsPerSecond() {
+        double steps_per_second = 0;
+        for (final InterpreterMetrics metrics : open) steps_per_second += metrics.getStepsPerSecond();
+        return steps_per_second;
+    }
+
+    @Override
+    public long getTotalOutputChars() {
+        long chars = closed_output_chars.get();
+        for (final InterpreterMetrics metrics : open) chars += metrics.getOutputChars();
+        return chars;
+    }
+
+    @Override
+    public int getPeakStackDepth() {
+        long peak = closed_peak_stack_depth.get();
+        for (final InterpreterMetrics metrics : open) peak = Math.max(peak, metrics.getPeakStackDepth());
+        return (int) peak;
+    }
+
+    @Override
+    public Map<String, Long> getTerminations() {
+        final Map<String, Long> counts = new TreeMap<>();
+        for (final RunResult.Reason reason : RunResult.Reason.values()) {
+            counts.put(reason.toString(), terminations.get(reason.ordinal()));
+        }
+
+        return counts;
+    }
+}
@@ -0,0 +1,37 @@
+package sample;
+
+import java.util.Map;
+
+/**
+ * The metrics of every interpreter in the process, as seen over JMX.
+ */
+public interface AggregateMetricsMXBean {
+    /**
+     * @return How many interpreters have metrics which haven't been closed.
+     */
+    int getOpenInterpreters();
+
+    long getClosedInterpreters();
+
+    /**
+     * @return How many steps every interpreter has run, including the closed ones.
+     */
+    long getTotalSteps();
+
+    /**
+     * @return How many steps the open interpreters are running per second between them.
+     */
+    double getStepsPerSecond();
+
+    long getTotalOutputChars();
+
+    /**
+     * @return The deepest any interpreter's stack has been.
+     */
+    int getPeakStackDepth();
+
+    /**
+     * @return How many runs have stopped for each reason.
+     */
+    Map<String, Long> getTerminations();
+}
@@ -0,0 +1,233 @@
+package sample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Compiles a Mycelium program saved as a PNG into a runnable jar, which runs the program as JVM code without needing
+ * JavaFX or decoding the image when it starts.
+ *
+ * The program is split into blocks, each one a trace written by {@link TraceCompiler} and keyed by the position and
+ * direction it starts at. Blocks are found by following the exits of each block from the start of the program, along
+ * with the cells after every change of direction and function call, which is where a translocation usually ends up
+ * going. {@link AotMain} runs whichever block starts at the instruction pointer, and interprets the odd step where none
+ * does, so translocating somewhere the compiler didn't expect still works, just more slowly.
+ *
+ * Usage: AotCompiler program.png out.jar
+ */
+public class AotCompiler {
+    /** The most blocks to compile; anything beyond them is interpreted. */
+    static final int MAX_BLOCKS = 4096;
+
+    static final String BLOCKS_CLASS = "sample.GeneratedBlocks";
+    static final String PROGRAM_RESOURCE = "/sample/program.bin";
+
+    private static final String INTERPRETER = "sample/MyceliumInterpreter";
+
+    /** The classes in this package a compiled program runs with, none of which use JavaFX. */
+    private static final String[] RUNTIME_CLASSES = {
+            "AotMain", "CompiledBlocks", "MyceliumProgram", "MyceliumInterpreter", "RunResult", "RunResult$Reason",
+            "InputSource", "InputSource$1", "ReaderInputSource", "MappedFileInputSource",
+            "OutputSink", "OutputSink$1", "ChannelOutputSink", "PagedMemory", "HeapPagedMemory", "IntList",
+            "CallStack", "ResourceLimits", "StopCondition", "LoopDetector", "ExecutionProfile", "CheckpointLog",
+            "InterpreterSnapshot", "InterpreterMetrics", "InterpreterMetricsMXBean", "AggregateMetrics",
+            "AggregateMetricsMXBean"
+    };
+
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: AotCompiler <program.png> <out.jar>");
+            System.exit(2);
+        }
+
+        try {
+            final MyceliumProgram program = HeadlessRunner.load_program(new File(args[0]));
+            final int blocks = compile(program, Paths.get(args[1]));
+            System.err.println("compiled " + blocks + " blocks to " + args[1]);
+        } catch (IOException ioe) {
+            System.err.println("failed to compile: " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compiles a program into a runnable jar.
+     * @param program The program to compile.
+     * @param jar Where to write the jar.
+     * @return How many blocks were compiled.
+     */
+    public static int compile(MyceliumProgram program, Path jar) throws IOException {
+        if ((long) program.width * program.height > Integer.MAX_VALUE / 4) {
+            throw new IOException("program is too large to compile");
+        }
+
+        final TraceCompiler traces = new TraceCompiler(program);
+        final ClassWriter writer = new ClassWriter(BLOCKS_CLASS.replace('.', '/'), "java/lang/Object",
+                "sample/CompiledBlocks");
+        writer.default_constructor("java/lang/Object");
+
+        // the block starting at each position and direction, numbered from 1
+        final Map<Integer, Integer> blocks = new HashMap<>();
+        final ArrayDeque<int[]> pending = entry_points(program);
+        final List<int[]> exits = new ArrayList<>();
+
+        while (!pending.isEmpty() && blocks.size() < MAX_BLOCKS) {
+            final int[] state = pending.poll();
+            final int key = key_of(program, state[0], state[1], state[2]);
+            if (blocks.containsKey(key)) continue;
+            if (program.opcode_at(key >> 2) == MyceliumProgram.OP_TRANSLOCATE) continue; // always interpreted
+
+            final int number = blocks.size() + 1;
+            blocks.put(key, number);
+
+            final ClassWriter.MethodWriter method = writer.method(ClassWriter.ACC_PRIVATE, "block" + number,
+                    "(L" + INTERPRETER + ";)V");
+            exits.clear();
+            traces.write_trace(method, state[0], state[1], state[2], exits);
+            pending.addAll(exits);
+        }
+
+        write_dispatch(writer, blocks.size());
+
+        try (final JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest())) {
+            copy_runtime_classes(out);
+
+            out.putNextEntry(new JarEntry(BLOCKS_CLASS.replace('.', '/') + ".class"));
+            out.write(writer.to_bytes());
+            out.closeEntry();
+
+            out.putNextEntry(new JarEntry(PROGRAM_RESOURCE.substring(1)));
+            final DataOutputStream data = new DataOutputStream(out);
+            program.write_to(data);
+            data.writeInt(blocks.size());
+            for (final Map.Entry<Integer, Integer> block : blocks.entrySet()) {
+                data.writeInt(block.getKey());
+                data.writeInt(block.getValue());
+            }
+            data.flush();
+            out.closeEntry();
+        }
+
+        return blocks.size();
+    }
+
+    /**
+     * The key of a position and direction in the table of blocks {@link AotMain} looks blocks up in.
+     */
+    static int key_of(MyceliumProgram program, int x, int y, int dir) {
+        return (program.index_of(x, y) << 2) | dir;
+    }
+
+    private static ArrayDeque<int[]> entry_points(MyceliumProgram program) {
+        final ArrayDeque<int[]> entry_points = new ArrayDeque<>();
+        entry_points.add(new int[]{0, 0, 0});
+
+        for (int y = 0; y < program.height; y++) {
+            for (int x = 0; x < program.width; x++) {
+                final int cell = program.index_of(x, y);
+                final int opcode = program.opcode_at(cell);
+
+                if (opcode == MyceliumProgram.OP_DIRECTION) {
+                    add_if_inside(program, entry_points, x, y, program.sub_op_at(cell));
+                } else if (opcode == MyceliumProgram.OP_TRANSLOCATE && program.sub_op_at(cell) == 1) {
+                    // a function can be called going any direction, and returns to the cell after the call
+                    for (int dir = 0; dir < 4; dir++) {
+                        add_if_inside(program, entry_points, x, y, dir);
+                    }
+                }
+            }
+        }
+
+        return entry_points;
+    }
+
+    private static void add_if_inside(MyceliumProgram program, ArrayDeque<int[]> states, int x, int y, int dir) {
+        final int next_x = x + (dir == 0 ? 1 : dir == 2 ? -1 : 0);
+        final int next_y = y + (dir == 1 ? 1 : dir == 3 ? -1 : 0);
+
+        if (next_x >= 0 && next_x < program.width && next_y >= 0 && next_y < program.height) {
+            states.add(new int[]{next_x, next_y, dir});
+        }
+    }
+
+    /**
+     * Writes run_block, which calls the block with the given number.
+     */
+    private static void write_dispatch(ClassWriter writer, int block_count) {
+        final ClassWriter.MethodWriter method = writer.method(ClassWriter.ACC_PUBLIC, "run_block",
+                "(IL" + INTERPRETER + ";)V");
+        method.reserve_locals(3);
+
+        final ClassWriter.Label done = method.new_label();
+        final ClassWriter.Label[] targets = new ClassWriter.Label[block_count];
+        for (int i = 0; i < block_count; i++) {
+            targets[i] = method.new_label();
+        }
+
+        if (block_count > 0) {
+            method.iload(1);
+            method.table_switch(done, 1, targets);
+        }
+
+        for (int i = 0; i < block_count; i++) {
+            method.mark(targets[i]);
+            method.aload(0);
+            method.aload(2);
+            method.op_u2(ClassWriter.INVOKESPECIAL, writer.method_ref(BLOCKS_CLASS.replace('.', '/'),
+                    "block" + (i + 1), "(L" + INTERPRETER + ";)V"));
+            method.op(ClassWriter.RETURN);
+        }
+
+        method.mark(done);
+        method.op(ClassWriter.RETURN);
+    }
+
+    private static Manifest manifest() {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, AotMain.class.getName());
+        return manifest;
+    }
+
+    /**
+     * Copies the classes the compiled program needs to run into the jar, which are {@link AotMain} and the
+     * interpreter along with everything it uses.
+     */
+    private static void copy_runtime_classes(JarOutputStream out) throws IOException {
+        for (final String name : RUNTIME_CLASSES) {
+            try (final InputStream in = AotCompiler.class.getResourceAsStream("/sample/" + name + ".class")) {
+                if (in == null) throw new IOException("can't find the runtime class " + name);
+
+                out.putNextEntry(new JarEntry("sample/" + name + ".class"));
+                out.write(read_all(in));
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static byte[] read_all(InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, read);
+        }
+
+        return bytes.toByteArray();
+    }
+}
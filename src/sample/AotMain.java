@@ -0,0 +1,80 @@
+package sample;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * The main class of a jar written by {@link AotCompiler}. It runs the program compiled into the jar to completion,
+ * with its output going to stdout and its input read from stdin, or from a file if one is given.
+ *
+ * Usage: java -jar program.jar [--input file]
+ */
+public class AotMain {
+    public static void main(String[] args) {
+        if (args.length != 0 && (args.length != 2 || !args[0].equals("--input"))) {
+            System.err.println("usage: java -jar program.jar [--input file]");
+            System.exit(2);
+        }
+
+        final MyceliumProgram program;
+        final int[] blocks;
+        final CompiledBlocks code;
+        try (final InputStream resource = AotMain.class.getResourceAsStream(AotCompiler.PROGRAM_RESOURCE)) {
+            if (resource == null) throw new IOException("no compiled program in this jar");
+
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(resource));
+            program = MyceliumProgram.read_from(in);
+            blocks = new int[program.width * program.height * 4];
+            for (int i = in.readInt(); i > 0; i--) {
+                final int key = in.readInt();
+                blocks[key] = in.readInt();
+            }
+
+            code = (CompiledBlocks) Class.forName(AotCompiler.BLOCKS_CLASS).getConstructor().newInstance();
+        } catch (IOException | ReflectiveOperationException e) {
+            System.err.println("failed to load the program: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        try (final MappedFileInputSource mapped_input = args.length == 2
+                ? new MappedFileInputSource(Paths.get(args[1]))
+                : null) {
+            final InputSource input = mapped_input != null
+                    ? mapped_input
+                    : new ReaderInputSource(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+            final OutputSink stdout = new ChannelOutputSink(new FileOutputStream(FileDescriptor.out).getChannel());
+
+            run(new MyceliumInterpreter(program, stdout, input), code, blocks);
+        } catch (IOException ioe) {
+            System.err.println("failed to open file: " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Runs the program until it halts, running the compiled block wherever there is one and interpreting otherwise.
+     * @param blocks The number of the block at each position and direction, or 0 where there isn't one.
+     */
+    static void run(MyceliumInterpreter interpreter, CompiledBlocks code, int[] blocks) {
+        final int width = interpreter.img_width;
+
+        while (!interpreter.is_finished) {
+            final int block = blocks[((interpreter.ip_y * width + interpreter.ip_x) << 2) | interpreter.ip_dir];
+            if (block == 0) {
+                interpreter.step();
+            } else {
+                code.run_block(block, interpreter);
+            }
+        }
+
+        interpreter.output.finish();
+    }
+}
@@ -0,0 +1,133 @@
+package sample;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs an interpreter on a background thread at a given number of steps per second, or as fast as possible.
+ *
+ * After each batch of steps the worker publishes a snapshot of the interpreter, but only once the previous snapshot
+ * has been taken, so a slow consumer (the UI, once per frame) simply misses the states in between rather than holding
+ * the worker up. Since the snapshots only hold what changed since the one before, every snapshot published is
+ * eventually taken, apart from one which gets replaced by a full snapshot when the worker finishes. The interpreter
+ * itself is only ever touched while holding its monitor.
+ */
+public class AutoplayWorker implements Runnable {
+    /** The speed meaning "as fast as possible". */
+    static final long MAX_SPEED = 0;
+
+    // how many steps to run while holding the interpreter's lock when running as fast as possible
+    private static final long BATCH_SIZE = 10_000;
+
+    private final MyceliumInterpreter interpreter;
+    private final Runnable when_finished;
+    private final Thread thread;
+    private final AtomicReference<InterpreterSnapshot> latest;
+    private volatile long steps_per_second;
+    private volatile boolean speed_changed;
+    private volatile boolean running;
+
+    /**
+     * @param interpreter The interpreter to run.
+     * @param steps_per_second How fast to run the interpreter, or {@link #MAX_SPEED}.
+     * @param when_finished Called on the worker thread once the program halts or the worker is stopped.
+     */
+    public AutoplayWorker(MyceliumInterpreter interpreter, long steps_per_second, Runnable when_finished) {
+        this.interpreter = interpreter;
+        this.when_finished = when_finished;
+        this.steps_per_second = steps_per_second;
+        this.speed_changed = false;
+        this.running = false;
+        this.latest = new AtomicReference<>();
+        this.thread = new Thread(this, "mycelium-autoplay");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /**
+     * Stops the worker and waits for it to finish. Its final snapshot is left to be taken.
+     */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean is_running() {
+        return running;
+    }
+
+    /**
+     * Takes the most recent snapshot of the interpreter, if there is one which hasn't been taken already.
+     * @return The snapshot, or null if the interpreter hasn't run since the last one was taken.
+     */
+    public InterpreterSnapshot take_snapshot() {
+        return latest.getAndSet(null);
+    }
+
+    public void set_speed(long steps_per_second) {
+        this.steps_per_second = steps_per_second;
+        this.speed_changed = true;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        long steps_run = 0;
+
+        try {
+            while (running) {
+                if (speed_changed) {
+                    speed_changed = false;
+                    start = System.nanoTime();
+                    steps_run = 0;
+                }
+
+                final long speed = steps_per_second;
+                final long batch;
+                if (speed == MAX_SPEED) {
+                    batch = BATCH_SIZE;
+                } else {
+                    // run however many steps we are behind by, then sleep until the next one is due
+                    final long due = (System.nanoTime() - start) * speed / 1_000_000_000L + 1;
+                    batch = Math.min(due - steps_run, Math.max(speed / 10, 1));
+                }
+
+                if (batch > 0) {
+                    final boolean halted;
+                    synchronized (interpreter) {
+                        halted = interpreter.run(batch).reason == RunResult.Reason.HALTED;
+                        if (latest.get() == null) latest.set(interpreter.snapshot());
+                    }
+                    steps_run += batch;
+
+                    if (halted) break;
+                }
+
+                if (speed != MAX_SPEED) {
+                    final long next_due = start + (steps_run * 1_000_000_000L) / speed;
+                    final long wait = next_due - System.nanoTime();
+                    if (wait > 0) Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                }
+            }
+        } catch (InterruptedException ie) {
+            // stopped while waiting for the next step
+        } finally {
+            synchronized (interpreter) {
+                // if the last snapshot was never taken then its changes are lost, so this one has to have everything
+                final boolean missed_snapshot = latest.getAndSet(null) != null;
+                latest.set(interpreter.snapshot(missed_snapshot));
+            }
+            running = false;
+            when_finished.run();
+        }
+    }
+}
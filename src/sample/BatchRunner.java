@@ -0,0 +1,216 @@
+package sample;
+
+import javax.management.JMException;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs every Mycelium program in a directory, spread over a work stealing pool with one thread per core by default.
+ *
+ * Each program is decoded and run by its own task with its own interpreter. A program's input is read from the file
+ * next to it with the same name and the extension .in, if there is one. Its output is written to a file of the same
+ * name with the extension .out in the output directory, along with report.csv, which has a line per program saying
+ * how many steps it ran, how it stopped and how long it took.
+ *
+ * The runs can be limited with the same options as {@link HeadlessRunner}. Without any, a program which never halts
+ * keeps its thread busy forever. With --jmx the metrics of every program are registered as MBeans while it runs, along
+ * with those of the whole batch.
+ *
+ * Usage: BatchRunner [--out dir] [--threads n] [--detect-loops] [--jmx] [--max-steps n] [--max-stack n]
+ *                    [--max-calls n] [--max-memory n] [--max-output n] program-dir
+ */
+public class BatchRunner {
+    /**
+     * How one program's run went.
+     */
+    static final class JobResult {
+        final String name;
+        final long steps;
+        final String outcome;
+        final long nanos;
+        final long chars_printed;
+        final long chars_read;
+        final long loop_period;
+
+        JobResult(String name, long steps, String outcome, long nanos, long chars_printed, long chars_read,
+                  long loop_period) {
+            this.name = name;
+            this.steps = steps;
+            this.outcome = outcome;
+            this.nanos = nanos;
+            this.chars_printed = chars_printed;
+            this.chars_read = chars_read;
+            this.loop_period = loop_period;
+        }
+    }
+
+    public static void main(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        String directory = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--detect-loops") || args[i].equals("--jmx")) {
+                options.put(args[i].substring(2), "");
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else if (directory == null) {
+                directory = args[i];
+            } else {
+                directory = null;
+                break;
+            }
+        }
+
+        if (directory == null) {
+            usage();
+            return;
+        }
+
+        final Path programs = Paths.get(directory);
+        final Path out = Paths.get(options.getOrDefault("out", directory));
+        final int threads;
+        final ResourceLimits limits;
+        try {
+            threads = Integer.parseInt(options.getOrDefault("threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            limits = HeadlessRunner.limits(options);
+        } catch (NumberFormatException nfe) {
+            usage();
+            return;
+        }
+        if (threads < 1) {
+            usage();
+            return;
+        }
+
+        try {
+            Files.createDirectories(out);
+
+            final long start = System.nanoTime();
+            final List<JobResult> results = run_all(programs, out, threads, limits, options.containsKey("detect-loops"),
+                    options.containsKey("jmx"));
+            final long elapsed = System.nanoTime() - start;
+
+            write_report(out.resolve("report.csv"), results);
+
+            long steps = 0;
+            for (final JobResult result : results) steps += result.steps;
+            System.err.println(String.format("programs: %d, steps: %d, time: %.3f ms (%.0f steps/s)",
+                    results.size(), steps, elapsed / 1e6, steps / Math.max(elapsed / 1e9, 1e-9)));
+        } catch (IOException ioe) {
+            System.err.println("batch failed: " + ioe.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: BatchRunner [--out dir] [--threads n] [--detect-loops] [--jmx] [--max-steps n]"
+                + " [--max-stack n] [--max-calls n] [--max-memory n] [--max-output n] <program-dir>");
+        System.exit(2);
+    }
+
+    /**
+     * Runs every PNG in a directory.
+     * @param programs The directory holding the programs.
+     * @param out Where to write each program's output.
+     * @param threads How many programs to run at once.
+     * @param limits The limits for each program's run.
+     * @param detect_loops Whether to stop programs which get stuck in a loop.
+     * @param register_metrics Whether to register each program's metrics as an MBean while it runs.
+     * @return How each program's run went, in order of name.
+     */
+    static List<JobResult> run_all(Path programs, Path out, int threads, ResourceLimits limits,
+                                   boolean detect_loops, boolean register_metrics) throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (final DirectoryStream<Path> pngs = Files.newDirectoryStream(programs, "*.png")) {
+            for (final Path path : pngs) paths.add(path);
+        }
+        paths.sort(null);
+
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            final List<ForkJoinTask<JobResult>> jobs = new ArrayList<>(paths.size());
+            for (final Path path : paths) {
+                jobs.add(pool.submit(() -> run_job(path, out, limits, detect_loops, register_metrics)));
+            }
+
+            final List<JobResult> results = new ArrayList<>(jobs.size());
+            for (final ForkJoinTask<JobResult> job : jobs) {
+                results.add(job.get());
+            }
+
+            return results;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running programs", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("a program could not be run", ee.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static JobResult run_job(Path path, Path out, ResourceLimits limits, boolean detect_loops,
+                                     boolean register_metrics) {
+        final String file_name = path.getFileName().toString();
+        final String name = file_name.substring(0, file_name.length() - ".png".length());
+        final Path input_path = path.resolveSibling(name + ".in");
+        final long start = System.nanoTime();
+
+        try (final FileChannel output_channel = FileChannel.open(out.resolve(name + ".out"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             final MappedFileInputSource mapped_input = Files.exists(input_path)
+                     ? new MappedFileInputSource(input_path)
+                     : null) {
+            final MyceliumProgram program = HeadlessRunner.load_program(path.toFile());
+            final InputSource input = mapped_input != null ? mapped_input : InputSource.empty();
+
+            final MyceliumInterpreter interpreter =
+                    new MyceliumInterpreter(program, new ChannelOutputSink(output_channel), input);
+            final LoopDetector detector = detect_loops ? new LoopDetector() : null;
+            final RunResult result;
+            if (register_metrics) {
+                try (final InterpreterMetrics metrics = InterpreterMetrics.register(name)) {
+                    interpreter.set_metrics(metrics);
+                    result = interpreter.run(limits, detector);
+                }
+            } else {
+                result = interpreter.run(limits, detector);
+            }
+            interpreter.output.finish();
+
+            return new JobResult(name, result.steps, result.reason.toString(), System.nanoTime() - start,
+                    interpreter.output.chars_printed(), input.chars_read(), detector == null ? 0 : detector.period());
+        } catch (IOException | JMException | RuntimeException e) {
+            return new JobResult(name, 0, "ERROR: " + e.getMessage(), System.nanoTime() - start, 0, 0, 0);
+        }
+    }
+
+    private static void write_report(Path path, List<JobResult> results) throws IOException {
+        try (final BufferedWriter out = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            out.write("program,steps,outcome,time_ms,chars_printed,chars_read,loop_period\n");
+            for (final JobResult result : results) {
+                out.write(String.format("%s,%d,%s,%.3f,%d,%d,%d\n",
+                        quote(result.name), result.steps, quote(result.outcome), result.nanos / 1e6,
+                        result.chars_printed, result.chars_read, result.loop_period));
+            }
+        }
+    }
+
+    private static String quote(String field) {
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+}
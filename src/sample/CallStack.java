@@ -0,0 +1,74 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * The stack of function calls made by a program. Each frame is the position and direction of the instruction pointer
+ * when the call was made, packed next to each other into a single int array.
+ */
+public class CallStack {
+    private static final int FRAME_SIZE = 3;
+
+    private int[] frames;
+    private int depth;
+
+    public CallStack() {
+        this.frames = new int[FRAME_SIZE * 16];
+        this.depth = 0;
+    }
+
+    public int depth() {
+        return depth;
+    }
+
+    public void push(int ip_x, int ip_y, int ip_dir) {
+        if (FRAME_SIZE * (depth + 1) > frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+        }
+
+        final int base = FRAME_SIZE * depth++;
+        frames[base] = ip_x;
+        frames[base + 1] = ip_y;
+        frames[base + 2] = ip_dir;
+    }
+
+    /**
+     * Removes the most recent frame, after which it can be read with {@link #x()}, {@link #y()} and {@link #dir()}.
+     * Popping an empty call stack leaves a frame of zeros, the same as returning to the start of the program.
+     */
+    public void pop() {
+        if (depth == 0) {
+            frames[0] = 0;
+            frames[1] = 0;
+            frames[2] = 0;
+        } else {
+            depth--;
+        }
+    }
+
+    /**
+     * @return The frames from the oldest to the most recent, as the x, y and direction of each one in turn.
+     */
+    public int[] to_array() {
+        return Arrays.copyOf(frames, FRAME_SIZE * depth);
+    }
+
+    /**
+     * @return The value at the given index of {@link #to_array()}, without copying the frames.
+     */
+    int value_at(int i) {
+        return frames[i];
+    }
+
+    int x() {
+        return frames[FRAME_SIZE * depth];
+    }
+
+    int y() {
+        return frames[FRAME_SIZE * depth + 1];
+    }
+
+    int dir() {
+        return frames[FRAME_SIZE * depth + 2];
+    }
+}
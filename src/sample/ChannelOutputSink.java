@@ -0,0 +1,113 @@
+package sample;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes output to a channel (a file, or stdout in headless mode) as UTF-8.
+ *
+ * A character made of a surrogate pair can be split between two batches of output, so the first half of a pair which
+ * ends a batch is held back until the next one. Anything still held back is only written once the sink is finished.
+ */
+public class ChannelOutputSink extends OutputSink {
+    private final WritableByteChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer bytes;
+    private long bytes_written;
+    // the first half of a surrogate pair which ended the last batch, or 0 if there isn't one
+    private char high_surrogate;
+    // a batch with the held back half in front of it
+    private char[] joined;
+
+    public ChannelOutputSink(WritableByteChannel channel) {
+        this.channel = channel;
+        this.encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.bytes = ByteBuffer.allocateDirect(1 << 15);
+        this.bytes_written = 0;
+        this.high_surrogate = 0;
+        this.joined = null;
+    }
+
+    @Override
+    protected void write(char[] chars, int length) {
+        final CharBuffer in;
+        if (high_surrogate != 0) {
+            if (joined == null || joined.length < length + 1) joined = new char[length + 1];
+            joined[0] = high_surrogate;
+            System.arraycopy(chars, 0, joined, 1, length);
+            in = CharBuffer.wrap(joined, 0, length + 1);
+            high_surrogate = 0;
+        } else {
+            in = CharBuffer.wrap(chars, 0, length);
+        }
+
+        encode(in, false);
+        // the encoder only leaves a high surrogate at the end unread, waiting for the other half
+        if (in.hasRemaining()) high_surrogate = in.get();
+    }
+
+    /**
+     * Flushes the output and writes out a surrogate which is still waiting for its other half, which can't come now.
+     */
+    @Override
+    public void finish() {
+        flush();
+
+        final char[] rest = high_surrogate != 0 ? new char[]{high_surrogate} : new char[0];
+        high_surrogate = 0;
+        encode(CharBuffer.wrap(rest), true);
+        encoder.reset();
+    }
+
+    /**
+     * @return How many bytes have been written to the channel.
+     */
+    @Override
+    public long position() {
+        return bytes_written;
+    }
+
+    @Override
+    public char held_back() {
+        return high_surrogate;
+    }
+
+    @Override
+    protected void resumed_at(long position, char held_back) {
+        bytes_written = position;
+        high_surrogate = held_back;
+    }
+
+    private void encode(CharBuffer in, boolean is_end) {
+        try {
+            boolean encoding = true;
+            while (encoding) {
+                encoding = encoder.encode(in, bytes, is_end).isOverflow();
+                drain();
+            }
+
+            if (is_end) {
+                while (encoder.flush(bytes).isOverflow()) drain();
+                drain();
+            }
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        while (bytes.hasRemaining()) {
+            bytes_written += channel.write(bytes);
+        }
+        bytes.clear();
+    }
+}
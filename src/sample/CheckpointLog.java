@@ -0,0 +1,505 @@
+package sample;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * An append-only log of checkpoints of an interpreter, kept in a memory-mapped file, so that a long run can be carried
+ * on by a fresh process if the one running it dies.
+ *
+ * Each checkpoint is made from a snapshot of the interpreter, so it only holds the stack values and memory pages which
+ * changed since the one before, along with the instruction pointer, the call stack and how far through its input and
+ * output the program had got. Taking the snapshot is all that is done on the interpreter's thread. The log writes it
+ * to the file on a thread of its own, and puts off the next checkpoint if that is still busy. Once the log has grown
+ * well past the size of its last full checkpoint it is replaced by a new one starting with a full checkpoint.
+ *
+ * The file starts with a header saying which program it is for, followed by the checkpoints. Each checkpoint is
+ * preceded by its length and checksum, which are written after the rest of it, so a checkpoint which was only partly
+ * written when the process died is ignored and the run is restored from the one before.
+ */
+public class CheckpointLog implements AutoCloseable {
+    // the first int of a checkpoint log
+    private static final int MAGIC = 0x4D59434B;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    // the length and checksum before each checkpoint
+    private static final int RECORD_HEADER_SIZE = 12;
+    // the steps, instruction pointer, memory pointer, flags, input and output counts and the char the output held back
+    // at the start of a checkpoint
+    private static final int SCALARS_SIZE = 56;
+    private static final int IS_FINISHED = 1;
+    private static final int IS_FULL = 2;
+    private static final long REGION_SIZE = 16L << 20;
+    // how much bigger than its last full checkpoint the log can grow before it is replaced
+    private static final long MIN_COMPACT_SIZE = 64L << 20;
+
+    private final Path path;
+    private final MyceliumProgram program;
+    private final int fingerprint;
+    private final ExecutorService writer;
+    private final CRC32 crc;
+    // the file and the part of it mapped for writing, which only the writer thread touches once the log is open
+    private FileChannel channel;
+    private MappedByteBuffer region;
+    private long region_start;
+    // where the part of the region which hasn't been added to the checksum yet starts
+    private int unchecked_start;
+    private long last_full_start;
+    private long last_full_size;
+    // the checkpoint being written, if any
+    private Future<?> pending;
+    private volatile boolean needs_full;
+    private volatile IOException failure;
+    // where the last whole checkpoint in the file ended when it was opened, and what it said
+    private long restorable_end;
+    private boolean has_checkpoint;
+    private long checkpoint_steps;
+    private long output_position;
+    private char output_held_back;
+
+    /**
+     * Opens a checkpoint log, creating it if it doesn't exist yet.
+     * @param path The file the log is kept in.
+     * @param program The program being run, which a log that already exists must be for.
+     */
+    public CheckpointLog(Path path, MyceliumProgram program) throws IOException {
+        this.path = path;
+        this.program = program;
+        this.fingerprint = program.fingerprint();
+        this.crc = new CRC32();
+        this.pending = null;
+        this.needs_full = true;
+        this.failure = null;
+        this.has_checkpoint = false;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        try {
+            if (channel.size() == 0) {
+                start_file();
+            } else {
+                scan();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.writer = Executors.newSingleThreadExecutor(task -> {
+            final Thread thread = new Thread(task, "checkpoint writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return Whether the log held a checkpoint when it was opened.
+     */
+    public boolean has_checkpoint() {
+        return has_checkpoint;
+    }
+
+    /**
+     * @return How many steps had been run when the checkpoint the log was opened with was taken.
+     */
+    public long checkpoint_steps() {
+        return checkpoint_steps;
+    }
+
+    /**
+     * @return How far through its destination the output had got when the checkpoint the log was opened with was
+     * taken, as given by {@link OutputSink#position()}.
+     */
+    public long output_position() {
+        return output_position;
+    }
+
+    /**
+     * Puts an interpreter back in the state of the checkpoint the log was opened with, and carries on the log from
+     * there. The interpreter's input is read up to where it had got, and its output carries on from where it was.
+     * @param interpreter A fresh interpreter for the log's program, which hasn't run any steps.
+     */
+    public void restore(MyceliumInterpreter interpreter) throws IOException {
+        if (!has_checkpoint) throw new IllegalStateException("there is no checkpoint to restore");
+        if (interpreter.steps != 0 || interpreter.calls.depth() != 0) {
+            throw new IllegalStateException("only a fresh interpreter can be restored");
+        }
+
+        int[] call_frames = new int[0];
+        long chars_read = 0;
+        long chars_printed = 0;
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path),
+                1 << 16))) {
+            in.readFully(new byte[HEADER_SIZE]);
+
+            // every checkpoint up to the last one is applied in turn, as each holds only what changed
+            for (long offset = HEADER_SIZE; offset < restorable_end; ) {
+                offset += RECORD_HEADER_SIZE + in.readLong();
+                in.readInt();
+
+                interpreter.steps = in.readLong();
+                interpreter.ip_x = in.readInt();
+                interpreter.ip_y = in.readInt();
+                interpreter.ip_dir = in.readInt();
+                interpreter.mem_ptr = in.readInt();
+                interpreter.is_finished = (in.readInt() & IS_FINISHED) != 0;
+                chars_read = in.readLong();
+                chars_printed = in.readLong();
+                in.readLong();
+                in.readInt();
+
+                final int stack_base = in.readInt();
+                while (interpreter.stack.size() > stack_base) interpreter.stack.pop();
+                for (final int value : read_ints(in, in.readInt())) interpreter.stack.add(value);
+
+                call_frames = read_ints(in, in.readInt());
+
+                final int page_count = in.readInt();
+                for (int i = 0; i < page_count; i++) {
+                    final int base = in.readInt() << PagedMemory.PAGE_BITS;
+                    final int[] values = read_ints(in, in.readInt());
+                    for (int cell = 0; cell < PagedMemory.PAGE_SIZE; cell++) {
+                        interpreter.memory.set(base | cell, cell < values.length ? values[cell] : 0);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < call_frames.length; i += 3) {
+            interpreter.calls.push(call_frames[i], call_frames[i + 1], call_frames[i + 2]);
+        }
+
+        final InputSource input = interpreter.input;
+        while (input.chars_read() < chars_read) {
+            if (input.read_char() == InputSource.EOF) {
+                throw new IOException("the input is shorter than it was when the checkpoint was taken");
+            }
+        }
+        interpreter.output.resume(chars_printed, output_position, output_held_back);
+
+        // the next checkpoint only has to hold what changes from here on
+        interpreter.forget_changes();
+        needs_full = false;
+    }
+
+    /**
+     * Takes a checkpoint of an interpreter, waiting for the last one to be written first. The checkpoint is written
+     * in the background, and is only sure to be in the log once the log is closed.
+     * @param interpreter The interpreter, which must be the only one checkpointed to this log.
+     */
+    public void checkpoint(MyceliumInterpreter interpreter) throws IOException {
+        await_pending();
+        start_checkpoint(interpreter);
+    }
+
+    /**
+     * Takes a last checkpoint of an interpreter and waits for it to be written.
+     * @param interpreter The interpreter, which must be the only one checkpointed to this log.
+     */
+    public void finish(MyceliumInterpreter interpreter) throws IOException {
+        checkpoint(interpreter);
+        await_pending();
+    }
+
+    /**
+     * Takes a checkpoint of an interpreter, unless the last one is still being written.
+     * @param interpreter The interpreter, which must be the only one checkpointed to this log.
+     * @return Whether a checkpoint was taken.
+     */
+    boolean try_checkpoint(MyceliumInterpreter interpreter) {
+        if (pending != null && !pending.isDone()) return false;
+
+        if (failure != null) throw new UncheckedIOException(failure);
+        start_checkpoint(interpreter);
+        return true;
+    }
+
+    /**
+     * Waits for the last checkpoint to be written and closes the file. Closing the log again does nothing.
+     */
+    @Override
+    public void close() throws IOException {
+        if (writer.isShutdown()) return;
+
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing a checkpoint", ie);
+        } finally {
+            channel.close();
+        }
+
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Waits for the checkpoint being written, if there is one, and throws any failure to write one.
+     */
+    private void await_pending() throws IOException {
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while writing a checkpoint", ie);
+            } catch (ExecutionException ee) {
+                throw new IOException("failed to write a checkpoint", ee.getCause());
+            }
+        }
+
+        if (failure != null) throw failure;
+    }
+
+    private void start_checkpoint(MyceliumInterpreter interpreter) {
+        final boolean is_full = needs_full;
+        needs_full = false;
+
+        // the output has to have reached its destination for its position to be worth recording
+        interpreter.output.flush();
+        final InterpreterSnapshot snapshot = interpreter.snapshot(is_full);
+        final int[] call_frames = interpreter.calls.to_array();
+        final long chars_read = interpreter.input.chars_read();
+        final long chars_printed = interpreter.output.chars_printed();
+        final long output_end = interpreter.output.position();
+        // the output may be holding back half of a character which has already been counted as printed
+        final char held_back = interpreter.output.held_back();
+
+        pending = writer.submit(() -> {
+            try {
+                if (is_full && position() > HEADER_SIZE) {
+                    replace_file(snapshot, call_frames, chars_read, chars_printed, output_end, held_back);
+                } else {
+                    append(snapshot, call_frames, chars_read, chars_printed, output_end, held_back);
+                }
+            } catch (IOException ioe) {
+                failure = ioe;
+            }
+        });
+    }
+
+    /**
+     * Reads the checkpoints in the file to find the last whole one, and gets ready to write after it.
+     */
+    private void scan() throws IOException {
+        final long size = channel.size();
+        final CRC32 checksum = new CRC32();
+        long offset = HEADER_SIZE;
+
+        try (final DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(
+                Files.newInputStream(path), 1 << 16), checksum))) {
+            if (size < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(path + " is not a checkpoint log");
+            }
+            if (in.readInt() != program.width || in.readInt() != program.height || in.readInt() != fingerprint) {
+                throw new IOException(path + " is a checkpoint log of a different program");
+            }
+
+            while (true) {
+                final long length = in.readLong();
+                final int expected = in.readInt();
+                if (length < SCALARS_SIZE || length > size - offset - RECORD_HEADER_SIZE) break;
+
+                checksum.reset();
+                final long steps = in.readLong();
+                in.readInt();
+                in.readInt();
+                in.readInt();
+                in.readInt();
+                final int flags = in.readInt();
+                in.readLong();
+                in.readLong();
+                final long position = in.readLong();
+                final char held_back = (char) in.readInt();
+
+                // the rest of the checkpoint only needs to be read for its checksum
+                long remaining = length - SCALARS_SIZE;
+                while (remaining > 0) {
+                    final long skipped = in.skip(remaining);
+                    if (skipped <= 0) throw new EOFException();
+                    remaining -= skipped;
+                }
+                if ((int) checksum.getValue() != expected) break;
+
+                if ((flags & IS_FULL) != 0) {
+                    last_full_start = offset;
+                    last_full_size = RECORD_HEADER_SIZE + length;
+                }
+                offset += RECORD_HEADER_SIZE + length;
+                has_checkpoint = true;
+                checkpoint_steps = steps;
+                output_position = position;
+                output_held_back = held_back;
+            }
+        } catch (EOFException eofe) {
+            // the last checkpoint was cut short
+        }
+
+        // clear out whatever is left of a checkpoint which was being written, so it can't be mistaken for one later
+        restorable_end = offset;
+        final ByteBuffer zeros = ByteBuffer.allocate(1 << 16);
+        for (long position = offset; position < size; position += zeros.capacity()) {
+            zeros.clear();
+            channel.write(zeros, position);
+        }
+
+        region_start = offset;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, region_start, REGION_SIZE);
+    }
+
+    /**
+     * Writes the header at the start of an empty file.
+     */
+    private void start_file() throws IOException {
+        region_start = 0;
+        region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_SIZE);
+        region.putInt(MAGIC);
+        region.putInt(VERSION);
+        region.putInt(program.width);
+        region.putInt(program.height);
+        region.putInt(fingerprint);
+        region.force();
+    }
+
+    /**
+     * Writes a full checkpoint to a new file and then moves it over the log, so the log is never without a checkpoint.
+     */
+    private void replace_file(InterpreterSnapshot snapshot, int[] call_frames, long chars_read, long chars_printed,
+                              long output_position, char output_held_back) throws IOException {
+        final Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        final FileChannel old_channel = channel;
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        start_file();
+        append(snapshot, call_frames, chars_read, chars_printed, output_position, output_held_back);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        old_channel.close();
+    }
+
+    private void append(InterpreterSnapshot snapshot, int[] call_frames, long chars_read, long chars_printed,
+                        long output_position, char output_held_back) throws IOException {
+        final long start = position();
+        ensure(RECORD_HEADER_SIZE);
+        final MappedByteBuffer header = region;
+        final int header_at = region.position();
+        region.position(header_at + RECORD_HEADER_SIZE);
+        crc.reset();
+        unchecked_start = region.position();
+
+        put_long(snapshot.steps);
+        put_int(snapshot.ip_x);
+        put_int(snapshot.ip_y);
+        put_int(snapshot.ip_dir);
+        put_int(snapshot.mem_ptr);
+        put_int((snapshot.is_finished ? IS_FINISHED : 0) | (snapshot.is_full ? IS_FULL : 0));
+        put_long(chars_read);
+        put_long(chars_printed);
+        put_long(output_position);
+        put_int(output_held_back);
+
+        put_int(snapshot.stack_base);
+        put_int(snapshot.stack_tail.length);
+        put_ints(snapshot.stack_tail);
+        put_int(call_frames.length);
+        put_ints(call_frames);
+        put_int(snapshot.memory_pages.length);
+        for (int i = 0; i < snapshot.memory_pages.length; i++) {
+            put_int(snapshot.memory_pages[i]);
+            put_int(snapshot.memory_values[i].length);
+            put_ints(snapshot.memory_values[i]);
+        }
+
+        update_checksum();
+        final long length = position() - start - RECORD_HEADER_SIZE;
+
+        // the length goes in last, as until it does the checkpoint looks like the end of the log
+        header.putInt(header_at + 8, (int) crc.getValue());
+        header.putLong(header_at, length);
+        region.force();
+        if (header != region) header.force();
+
+        if (snapshot.is_full) {
+            last_full_start = start;
+            last_full_size = position() - start;
+        } else if (position() - last_full_start > 2 * last_full_size + MIN_COMPACT_SIZE) {
+            needs_full = true;
+        }
+    }
+
+    private long position() {
+        return region_start + region.position();
+    }
+
+    /**
+     * Makes sure there is room for the given number of bytes in the mapped region, mapping the next part of the file
+     * if there isn't.
+     */
+    private void ensure(int bytes) throws IOException {
+        if (region.remaining() >= bytes) return;
+
+        update_checksum();
+        region_start += region.position();
+        region = channel.map(FileChannel.MapMode.READ_WRITE, region_start, Math.max(REGION_SIZE, bytes));
+        unchecked_start = 0;
+    }
+
+    private void update_checksum() {
+        final ByteBuffer written = region.duplicate();
+        written.limit(region.position());
+        written.position(unchecked_start);
+        crc.update(written);
+        unchecked_start = region.position();
+    }
+
+    private void put_int(int value) throws IOException {
+        ensure(4);
+        region.putInt(value);
+    }
+
+    private void put_long(long value) throws IOException {
+        ensure(8);
+        region.putLong(value);
+    }
+
+    private void put_ints(int[] values) throws IOException {
+        for (int from = 0; from < values.length; ) {
+            ensure(4);
+            final int count = Math.min(values.length - from, region.remaining() / 4);
+            region.asIntBuffer().put(values, from, count);
+            region.position(region.position() + 4 * count);
+            from += count;
+        }
+    }
+
+    private static int[] read_ints(DataInputStream in, int count) throws IOException {
+        final int[] values = new int[count];
+        final byte[] bytes = new byte[Math.min(count, 1 << 14) * 4];
+        for (int from = 0; from < count; ) {
+            final int chunk = Math.min(count - from, bytes.length / 4);
+            in.readFully(bytes, 0, chunk * 4);
+            ByteBuffer.wrap(bytes, 0, chunk * 4).asIntBuffer().get(values, from, chunk);
+            from += chunk;
+        }
+
+        return values;
+    }
+}
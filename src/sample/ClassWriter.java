@@ -0,0 +1,442 @@
+package sample;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer to generate the classes which compiled Mycelium code lives in.
+ *
+ * Classes are written as version 49 (Java 5) class files, which are checked by the type inferencing verifier, so
+ * methods can branch without needing stack map frames.
+ */
+class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PRIVATE = 0x0002;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int ISTORE = 0x36;
+    static final int DUP = 0x59;
+    static final int IADD = 0x60;
+    static final int LADD = 0x61;
+    static final int ISUB = 0x64;
+    static final int IMUL = 0x68;
+    static final int ISHL = 0x78;
+    static final int ISHR = 0x7a;
+    static final int IUSHR = 0x7c;
+    static final int IAND = 0x7e;
+    static final int IOR = 0x80;
+    static final int IXOR = 0x82;
+    static final int I2L = 0x85;
+    static final int IFNE = 0x9a;
+    static final int TABLESWITCH = 0xaa;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+
+    private final ByteArrayOutputStream pool_bytes;
+    private final DataOutputStream pool;
+    private final Map<String, Integer> pool_indices;
+    private int pool_count;
+    private final int this_class;
+    private final int super_class;
+    private final int[] interfaces;
+    private final List<MethodWriter> methods;
+    // the descriptors of the fields and methods in the constant pool, by their index, for working out stack depths
+    private final Map<Integer, String> member_descriptors;
+
+    ClassWriter(String name, String super_name, String... interface_names) {
+        this.pool_bytes = new ByteArrayOutputStream();
+        this.pool = new DataOutputStream(pool_bytes);
+        this.pool_indices = new HashMap<>();
+        this.pool_count = 1;
+        this.this_class = class_ref(name);
+        this.super_class = class_ref(super_name);
+        this.interfaces = new int[interface_names.length];
+        for (int i = 0; i < interface_names.length; i++) {
+            this.interfaces[i] = class_ref(interface_names[i]);
+        }
+        this.methods = new ArrayList<>();
+        this.member_descriptors = new HashMap<>();
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, 1, out -> out.writeUTF(value));
+    }
+
+    int class_ref(String internal_name) {
+        final int name = utf8(internal_name);
+        return constant("C" + internal_name, 7, out -> out.writeShort(name));
+    }
+
+    int integer(int value) {
+        return constant("I" + value, 3, out -> out.writeInt(value));
+    }
+
+    int field_ref(String owner, String name, String descriptor) {
+        return member_ref(9, owner, name, descriptor);
+    }
+
+    int method_ref(String owner, String name, String descriptor) {
+        return member_ref(10, owner, name, descriptor);
+    }
+
+    MethodWriter method(int access, String name, String descriptor) {
+        final MethodWriter method = new MethodWriter(this, access, utf8(name), utf8(descriptor));
+        methods.add(method);
+        return method;
+    }
+
+    /**
+     * Adds a public constructor which only calls the constructor of the super class.
+     */
+    void default_constructor(String super_name) {
+        final MethodWriter init = method(ACC_PUBLIC, "<init>", "()V");
+        init.aload(0);
+        init.op_u2(INVOKESPECIAL, method_ref(super_name, "<init>", "()V"));
+        init.op(RETURN);
+    }
+
+    byte[] to_bytes() {
+        final int code = utf8("Code");
+
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(pool_count);
+            pool.flush();
+            pool_bytes.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(this_class);
+            out.writeShort(super_class);
+            out.writeShort(interfaces.length);
+            for (final int i : interfaces) out.writeShort(i);
+
+            out.writeShort(0); // fields
+
+            out.writeShort(methods.size());
+            for (final MethodWriter method : methods) {
+                method.write(out, code);
+            }
+
+            out.writeShort(0);
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+
+    private int member_ref(int tag, String owner, String name, String descriptor) {
+        final int owner_class = class_ref(owner);
+        final int name_utf8 = utf8(name);
+        final int descriptor_utf8 = utf8(descriptor);
+        final int name_and_type = constant("N" + name + ":" + descriptor, 12, out -> {
+            out.writeShort(name_utf8);
+            out.writeShort(descriptor_utf8);
+        });
+
+        final int index = constant(tag + owner + "." + name + ":" + descriptor, tag, out -> {
+            out.writeShort(owner_class);
+            out.writeShort(name_and_type);
+        });
+        member_descriptors.put(index, descriptor);
+        return index;
+    }
+
+    /**
+     * @return How many stack slots a value of a type takes up, given the type's descriptor from where it starts.
+     */
+    private static int slots_of(String descriptor, int start) {
+        final char type = descriptor.charAt(start);
+        return type == 'V' ? 0 : type == 'J' || type == 'D' ? 2 : 1;
+    }
+
+    /**
+     * @return How a field or method instruction changes the depth of the stack.
+     */
+    private int member_stack_effect(int opcode, int member) {
+        final String descriptor = member_descriptors.get(member);
+        if (opcode == GETFIELD) return slots_of(descriptor, 0) - 1;
+        if (opcode == PUTFIELD) return -slots_of(descriptor, 0) - 1;
+
+        int arguments = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            arguments += slots_of(descriptor, i);
+            while (descriptor.charAt(i) == '[') i++;
+            i = descriptor.charAt(i) == 'L' ? descriptor.indexOf(';', i) + 1 : i + 1;
+        }
+
+        return slots_of(descriptor, i + 1) - arguments - (opcode == INVOKESTATIC ? 0 : 1);
+    }
+
+    private interface ConstantBody {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private int constant(String key, int tag, ConstantBody body) {
+        final Integer existing = pool_indices.get(key);
+        if (existing != null) return existing;
+
+        try {
+            pool.writeByte(tag);
+            body.write(pool);
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+
+        pool_indices.put(key, pool_count);
+        return pool_count++;
+    }
+
+    /**
+     * A position in a method's code which can be jumped to before it is known where it is.
+     */
+    static final class Label {
+        private int position = -1;
+        // the depth of the stack at the label, as left by the first jump to it
+        private int stack_depth = -1;
+        // where the jumps to this label are: the position of the jump instruction and of its offset
+        private final List<int[]> references = new ArrayList<>();
+    }
+
+    static final class MethodWriter {
+        private final ClassWriter owner;
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final ByteArrayOutputStream code;
+        private final List<Label> labels;
+        private int stack_depth;
+        private int max_stack;
+        private int max_locals;
+
+        private MethodWriter(ClassWriter owner, int access, int name, int descriptor) {
+            this.owner = owner;
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.code = new ByteArrayOutputStream();
+            this.labels = new ArrayList<>();
+            this.stack_depth = 0;
+            this.max_stack = 0;
+            this.max_locals = 1;
+        }
+
+        ClassWriter owner() {
+            return owner;
+        }
+
+        /**
+         * Makes sure the method has room for at least the given number of local variable slots.
+         */
+        void reserve_locals(int count) {
+            max_locals = Math.max(max_locals, count);
+        }
+
+        int size() {
+            return code.size();
+        }
+
+        void op(int opcode) {
+            code.write(opcode);
+            change_stack(stack_effect(opcode));
+        }
+
+        void op_u1(int opcode, int operand) {
+            op(opcode);
+            code.write(operand);
+        }
+
+        void op_u2(int opcode, int operand) {
+            code.write(opcode);
+            write_u2(operand);
+            change_stack(opcode >= GETFIELD && opcode <= INVOKESTATIC
+                    ? owner.member_stack_effect(opcode, operand)
+                    : stack_effect(opcode));
+        }
+
+        void push_int(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op_u1(BIPUSH, value & 0xFF);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op_u2(SIPUSH, value & 0xFFFF);
+            } else {
+                op_u2(LDC_W, owner.integer(value));
+            }
+        }
+
+        void iload(int local) {
+            local_op(ILOAD, 0x1a, local);
+        }
+
+        void istore(int local) {
+            local_op(ISTORE, 0x3b, local);
+        }
+
+        void aload(int local) {
+            local_op(ALOAD, 0x2a, local);
+        }
+
+        Label new_label() {
+            final Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        void mark(Label label) {
+            label.position = code.size();
+            // code after a label can be reached by jumping to it, with the stack as the jump left it
+            if (label.stack_depth >= 0) stack_depth = label.stack_depth;
+        }
+
+        /**
+         * Writes a branch instruction to a label.
+         */
+        void jump(int opcode, Label label) {
+            label.references.add(new int[]{code.size(), code.size() + 1, 2});
+            op_u2(opcode, 0);
+            reach(label);
+        }
+
+        /**
+         * Writes a tableswitch over the values from low up to low + targets.length - 1.
+         */
+        void table_switch(Label default_label, int low, Label[] targets) {
+            final int start = code.size();
+            op(TABLESWITCH);
+            while (code.size() % 4 != 0) code.write(0);
+
+            default_label.references.add(new int[]{start, code.size(), 4});
+            reach(default_label);
+            write_u4(0);
+            write_u4(low);
+            write_u4(low + targets.length - 1);
+            for (final Label target : targets) {
+                target.references.add(new int[]{start, code.size(), 4});
+                reach(target);
+                write_u4(0);
+            }
+        }
+
+        private void local_op(int opcode, int short_opcode, int local) {
+            max_locals = Math.max(max_locals, local + 1);
+
+            if (local <= 3) {
+                code.write(short_opcode + local);
+            } else if (local <= 0xFF) {
+                code.write(opcode);
+                code.write(local);
+            } else {
+                code.write(0xc4); // wide
+                code.write(opcode);
+                write_u2(local);
+            }
+            change_stack(stack_effect(opcode));
+        }
+
+        private void reach(Label label) {
+            if (label.stack_depth < 0) label.stack_depth = stack_depth;
+        }
+
+        private void change_stack(int effect) {
+            stack_depth += effect;
+            if (stack_depth < 0) throw new IllegalStateException("stack underflow");
+            max_stack = Math.max(max_stack, stack_depth);
+        }
+
+        /**
+         * @return How an instruction which doesn't refer to a field or method changes the depth of the stack.
+         */
+        private static int stack_effect(int opcode) {
+            if (opcode >= ICONST_0 - 1 && opcode <= ICONST_0 + 5) return 1;
+
+            switch (opcode) {
+                case BIPUSH: case SIPUSH: case LDC_W: case ILOAD: case ALOAD: case DUP: case I2L:
+                    return 1;
+                case ISTORE: case IADD: case ISUB: case IMUL: case ISHL: case ISHR: case IUSHR: case IAND: case IOR:
+                case IXOR: case IFNE: case TABLESWITCH:
+                    return -1;
+                case LADD:
+                    return -2;
+                case RETURN:
+                    return 0;
+                default:
+                    throw new IllegalArgumentException("the stack effect of opcode " + opcode + " isn't known");
+            }
+        }
+
+        private void write_u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        private void write_u4(int value) {
+            write_u2(value >>> 16);
+            write_u2(value & 0xFFFF);
+        }
+
+        private void write(DataOutputStream out, int code_attribute) throws IOException {
+            final byte[] bytes = code.toByteArray();
+            if (bytes.length > 0xFFFF) throw new IllegalStateException("method is too large");
+
+            // now that every label has a position, fill in the offsets of the jumps to them
+            for (final Label label : labels) {
+                if (label.position < 0 && !label.references.isEmpty()) {
+                    throw new IllegalStateException("jump to a label which was never marked");
+                }
+
+                for (final int[] reference : label.references) {
+                    final int offset = label.position - reference[0];
+                    if (reference[2] == 2) {
+                        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+                            throw new IllegalStateException("jump is too far");
+                        }
+                        bytes[reference[1]] = (byte) (offset >> 8);
+                        bytes[reference[1] + 1] = (byte) offset;
+                    } else {
+                        bytes[reference[1]] = (byte) (offset >> 24);
+                        bytes[reference[1] + 1] = (byte) (offset >> 16);
+                        bytes[reference[1] + 2] = (byte) (offset >> 8);
+                        bytes[reference[1] + 3] = (byte) offset;
+                    }
+                }
+            }
+
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(code_attribute);
+            out.writeInt(12 + bytes.length);
+            out.writeShort(max_stack);
+            out.writeShort(max_locals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package sample;
+
+/**
+ * The blocks of a program compiled ahead of time by {@link AotCompiler}.
+ */
+public interface CompiledBlocks {
+    /**
+     * Runs one block, leaving the interpreter in the state it would have been in had it run the same cells itself.
+     * @param block The number of the block, which must start where the interpreter's instruction pointer is.
+     * @param interpreter The interpreter.
+     */
+    void run_block(int block, MyceliumInterpreter interpreter);
+}
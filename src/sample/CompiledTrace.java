@@ -0,0 +1,13 @@
+package sample;
+
+/**
+ * A stretch of a program compiled to bytecode by {@link TraceCompiler}.
+ */
+public interface CompiledTrace {
+    /**
+     * Runs the trace from the state it was compiled for, leaving the interpreter in the state it would have been in
+     * had it run the same cells itself.
+     * @param interpreter The interpreter, whose instruction pointer must be at the start of the trace.
+     */
+    void run(MyceliumInterpreter interpreter);
+}
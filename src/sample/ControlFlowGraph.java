@@ -0,0 +1,351 @@
+package sample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The control flow of a program worked out without running it, as a graph over instruction pointer states: a
+ * position and a direction.
+ *
+ * Direction changes and jumps always go to the same place, and a conditional jump may go either way, unless the value
+ * it tests was pushed by the cell right before it, in which case the jump is folded and only goes the one way. A
+ * translocation goes wherever the constants pushed by the cells right before it say. Function returns can go back to
+ * after any call, or to the start of the program if there was no call. A translocation to somewhere which isn't
+ * pushed right before it is dynamic: it could go anywhere, so if a program has any, the cells found to be unreachable
+ * might not be, and whether it halts can't be decided.
+ *
+ * Otherwise the graph includes every way the program can go, so a cell which isn't in it can never run, and a program
+ * with no way out of the graph never halts.
+ */
+public class ControlFlowGraph {
+    /** The successor of a state whose step leaves the program. */
+    static final int HALT = -1;
+
+    final MyceliumProgram program;
+    final BitSet reachable_states;
+    final BitSet reachable_cells;
+    /** Conditional jumps which only go one way, as {x, y, dir, 1 if the jump is taken and 0 otherwise}. */
+    final List<int[]> folded_jumps;
+    /** Translocations whose target is constant, as {x, y, target x, target y}. */
+    final List<int[]> folded_translocations;
+    /** Translocations whose target is only known at run time, as {x, y, dir}. */
+    final List<int[]> dynamic_translocations;
+    final boolean can_halt;
+    // the edges of the graph as states, sorted by where they come from
+    private final int[] edges_from;
+    private final int[] edges_to;
+
+    private ControlFlowGraph(Builder builder) {
+        this.program = builder.program;
+        this.reachable_states = builder.reached;
+        this.reachable_cells = new BitSet(program.width * program.height);
+        for (int state = reachable_states.nextSetBit(0); state >= 0; state = reachable_states.nextSetBit(state + 1)) {
+            reachable_cells.set(state >> 2);
+        }
+
+        this.folded_jumps = builder.folded_jumps;
+        this.folded_translocations = builder.folded_translocations;
+        this.dynamic_translocations = builder.dynamic_translocations;
+        this.can_halt = builder.can_halt;
+
+        final long[] edges = new long[builder.from.size()];
+        for (int i = 0; i < edges.length; i++) {
+            edges[i] = ((long) builder.from.get(i) << 32) | (builder.to.get(i) & 0xFFFFFFFFL);
+        }
+        Arrays.sort(edges);
+        this.edges_from = new int[edges.length];
+        this.edges_to = new int[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            edges_from[i] = (int) (edges[i] >> 32);
+            edges_to[i] = (int) edges[i];
+        }
+    }
+
+    /**
+     * Works out the control flow graph of a program.
+     * @param program The program to analyse.
+     * @return The graph.
+     */
+    public static ControlFlowGraph analyze(MyceliumProgram program) {
+        // states are numbered by cell and direction, so there have to be few enough cells to number them all
+        if ((long) program.width * program.height > Integer.MAX_VALUE / 4) {
+            throw new IllegalArgumentException("program is too large to analyze");
+        }
+
+        final Builder builder = new Builder(program);
+        builder.run();
+        return new ControlFlowGraph(builder);
+    }
+
+    static int state_of(MyceliumProgram program, int x, int y, int dir) {
+        return (program.index_of(x, y) << 2) | dir;
+    }
+
+    /**
+     * @return Whether every translocation's target is known, so that the graph includes everywhere the program can go.
+     */
+    public boolean is_complete() {
+        return dynamic_translocations.isEmpty();
+    }
+
+    /**
+     * @return Whether the program is certain never to halt.
+     */
+    public boolean never_halts() {
+        return is_complete() && !can_halt;
+    }
+
+    public boolean is_reachable(int x, int y) {
+        return reachable_cells.get(program.index_of(x, y));
+    }
+
+    public int dead_cell_count() {
+        return program.width * program.height - reachable_cells.cardinality();
+    }
+
+    /**
+     * @return The states which can follow the given one, which are {@link #HALT} for leaving the program. Empty if
+     *         the state isn't reachable, or is a dynamic translocation.
+     */
+    public int[] successors_of(int x, int y, int dir) {
+        final int state = state_of(program, x, y, dir);
+        int from = Arrays.binarySearch(edges_from, state);
+        if (from < 0) return new int[0];
+
+        while (from > 0 && edges_from[from - 1] == state) from--;
+        int to = from;
+        while (to < edges_from.length && edges_from[to] == state) to++;
+
+        return Arrays.copyOfRange(edges_to, from, to);
+    }
+
+    public int edge_count() {
+        return edges_from.length;
+    }
+
+    /**
+     * @return A summary of the analysis, one fact per line.
+     */
+    public String report() {
+        final StringBuilder report = new StringBuilder();
+        report.append("reachable states: ").append(reachable_states.cardinality())
+                .append(", edges: ").append(edge_count()).append('\n');
+        report.append("reachable cells: ").append(reachable_cells.cardinality())
+                .append(" of ").append(program.width * program.height)
+                .append(is_complete() ? "" : " (not counting dynamic translocations)").append('\n');
+        report.append("folded conditional jumps: ").append(folded_jumps.size()).append('\n');
+        report.append("folded translocations: ").append(folded_translocations.size()).append('\n');
+        for (final int[] translocation : dynamic_translocations) {
+            report.append("dynamic translocation at (").append(translocation[0]).append(", ")
+                    .append(translocation[1]).append(")\n");
+        }
+        report.append(never_halts() ? "never halts" : can_halt ? "may halt" : "halting depends on translocations")
+                .append('\n');
+
+        return report.toString();
+    }
+
+    /**
+     * Walks the program from its start, following every way each state can go.
+     */
+    private static final class Builder {
+        final MyceliumProgram program;
+        final BitSet reached;
+        // states which have been worked through, rather than only passed through by a folded sequence
+        final BitSet visited;
+        final IntList pending;
+        final IntList from;
+        final IntList to;
+        final List<int[]> folded_jumps;
+        final List<int[]> folded_translocations;
+        final List<int[]> dynamic_translocations;
+        // the states after every call, and the returns, which can go back to any of them
+        final IntList return_sites;
+        final IntList returns;
+        boolean can_halt;
+
+        Builder(MyceliumProgram program) {
+            this.program = program;
+            this.reached = new BitSet();
+            this.visited = new BitSet();
+            this.pending = new IntList();
+            this.from = new IntList();
+            this.to = new IntList();
+            this.folded_jumps = new ArrayList<>();
+            this.folded_translocations = new ArrayList<>();
+            this.dynamic_translocations = new ArrayList<>();
+            this.return_sites = new IntList();
+            this.returns = new IntList();
+            this.can_halt = false;
+        }
+
+        void run() {
+            // returning with nothing on the call stack goes to the start of the program, then moves on one cell
+            add_return_site(move(0, 0, 0, 1));
+
+            reached.set(0);
+            visit(0);
+            while (pending.size() > 0) {
+                visit(pending.pop());
+            }
+        }
+
+        private void visit(int state) {
+            if (visited.get(state)) return;
+            visited.set(state);
+
+            final int cell = state >> 2;
+            final int dir = state & 3;
+            final int x = cell % program.width;
+            final int y = cell / program.width;
+            final int sub_op = program.sub_op_at(cell);
+            final int operand = program.operand_at(cell);
+
+            switch (program.opcode_at(cell)) {
+                case MyceliumProgram.OP_DIRECTION:
+                    edge(state, move(x, y, sub_op, 1));
+                    break;
+                case MyceliumProgram.OP_JUMP:
+                    edge(state, move(x, y, dir, operand + 1));
+                    break;
+                case MyceliumProgram.OP_CONDITIONAL_JUMP:
+                    edge(state, move(x, y, dir, 1));
+                    edge(state, move(x, y, dir, operand + 1));
+                    break;
+                case MyceliumProgram.OP_TRANSLOCATE:
+                    if (sub_op == 2) {
+                        returns.add(state);
+                        for (int i = 0; i < return_sites.size(); i++) {
+                            edge(state, return_sites.get(i));
+                        }
+                    } else if (sub_op < 2) {
+                        if (sub_op == 1) add_return_site(move(x, y, dir, 1));
+                        dynamic_translocations.add(new int[]{x, y, dir});
+                    } else {
+                        edge(state, move(x, y, dir, 1));
+                    }
+                    break;
+                case MyceliumProgram.OP_PUSH:
+                case MyceliumProgram.OP_PUSH_TWO:
+                    if (!fold(state, x, y, dir)) {
+                        edge(state, move(x, y, dir, 1));
+                    }
+                    break;
+                default:
+                    edge(state, move(x, y, dir, 1));
+                    break;
+            }
+        }
+
+        /**
+         * Follows the sequence starting with the push at a state, if it feeds constants into a conditional jump or a
+         * translocation.
+         * @return Whether the sequence was folded.
+         */
+        private boolean fold(int state, int x, int y, int dir) {
+            final int second = move(x, y, dir, 1);
+            if (second == HALT) return false;
+
+            final int cell = state >> 2;
+            final int second_cell = second >> 2;
+            final int operand = program.operand_at(cell);
+
+            if (program.opcode_at(cell) == MyceliumProgram.OP_PUSH_TWO) {
+                if (program.opcode_at(second_cell) == MyceliumProgram.OP_CONDITIONAL_JUMP) {
+                    return fold_jump(state, second, operand & 0xFF);
+                }
+                // a translocation pops y and then x, which push two pushed in the opposite order
+                if (is_translocation(second_cell)) {
+                    return fold_translocation(state, second, operand >> 8, operand & 0xFF);
+                }
+                return false;
+            }
+
+            if (program.opcode_at(second_cell) == MyceliumProgram.OP_CONDITIONAL_JUMP) {
+                return fold_jump(state, second, operand);
+            }
+            if (program.opcode_at(second_cell) != MyceliumProgram.OP_PUSH) return false;
+
+            final int third = move(x, y, dir, 2);
+            if (third == HALT || !is_translocation(third >> 2)) return false;
+
+            pass_through(state, second);
+            return fold_translocation(second, third, operand, program.operand_at(second_cell));
+        }
+
+        private boolean fold_jump(int state, int jump, int condition) {
+            final int cell = jump >> 2;
+            final int dir = jump & 3;
+            final int x = cell % program.width;
+            final int y = cell / program.width;
+            final boolean taken = condition == 0;
+
+            pass_through(state, jump);
+            folded_jumps.add(new int[]{x, y, dir, taken ? 1 : 0});
+            edge(jump, move(x, y, dir, taken ? program.operand_at(cell) + 1 : 1));
+            return true;
+        }
+
+        private boolean fold_translocation(int state, int translocation, int target_x, int target_y) {
+            final int cell = translocation >> 2;
+            final int dir = translocation & 3;
+            final int x = cell % program.width;
+            final int y = cell / program.width;
+
+            pass_through(state, translocation);
+            folded_translocations.add(new int[]{x, y, target_x, target_y});
+            if (program.sub_op_at(cell) == 1) add_return_site(move(x, y, dir, 1));
+
+            // translocating moves the instruction pointer to the target and then on by one cell as usual
+            edge(translocation, move(target_x, target_y, dir, 1));
+            return true;
+        }
+
+        private boolean is_translocation(int cell) {
+            return program.opcode_at(cell) == MyceliumProgram.OP_TRANSLOCATE && program.sub_op_at(cell) < 2;
+        }
+
+        /**
+         * Records the step from one state to the next cell of a folded sequence, without working through where
+         * that cell could go on its own.
+         */
+        private void pass_through(int state, int next) {
+            from.add(state);
+            to.add(next);
+            reached.set(next);
+        }
+
+        private void add_return_site(int site) {
+            return_sites.add(site);
+            for (int i = 0; i < returns.size(); i++) {
+                edge(returns.get(i), site);
+            }
+        }
+
+        private void edge(int state, int next) {
+            from.add(state);
+            to.add(next);
+
+            if (next == HALT) {
+                can_halt = true;
+            } else if (!visited.get(next)) {
+                reached.set(next);
+                pending.add(next);
+            }
+        }
+
+        /**
+         * @return The state after moving the given distance from a position, or {@link #HALT} if that leaves the
+         *         program.
+         */
+        private int move(int x, int y, int dir, int distance) {
+            final long next_x = x + (long) distance * (dir == 0 ? 1 : dir == 2 ? -1 : 0);
+            final long next_y = y + (long) distance * (dir == 1 ? 1 : dir == 3 ? -1 : 0);
+            if (next_x < 0 || next_x >= program.width || next_y < 0 || next_y >= program.height) return HALT;
+
+            return state_of(program, (int) next_x, (int) next_y, dir);
+        }
+    }
+}
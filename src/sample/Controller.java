@@ -1,29 +1,57 @@
 package sample;
 
-import javafx.animation.KeyFrame;
-import javafx.animation.Timeline;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
 import javafx.scene.control.Button;
+import javafx.scene.control.ChoiceBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.Slider;
+import javafx.scene.control.TextField;
+import javafx.scene.control.ToggleButton;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
 import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
-import javafx.util.Duration;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.stream.Collectors;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
 
 public class Controller {
+    private static final String[] SPEED_NAMES = {
+            "1 step/s", "10 steps/s", "100 steps/s", "1000 steps/s", "100000 steps/s", "As fast as possible"
+    };
+    private static final long[] SPEEDS = {1, 10, 100, 1000, 100000, AutoplayWorker.MAX_SPEED};
+    // how many characters of output to keep on screen
+    private static final int OUTPUT_TAIL_SIZE = 16384;
+    // the size of the program the editor starts with
+    private static final int DEFAULT_PROGRAM_WIDTH = 30;
+    private static final int DEFAULT_PROGRAM_HEIGHT = 25;
+    // how often the heatmap is redrawn while the program runs
+    private static final long HEATMAP_REFRESH_NANOS = 250_000_000L;
+
+    @FXML
+    private Pane canvas_pane;
     @FXML
     private Canvas canvas;
     @FXML
+    private Canvas grid_canvas;
+    @FXML
+    private Canvas overlay_canvas;
+    @FXML
     private VBox right_pane;
     @FXML
     private Button compile_btn;
@@ -34,99 +62,122 @@ public class Controller {
     @FXML
     private Button autoplay_btn;
     @FXML
+    private ChoiceBox<String> speed_box;
+    @FXML
+    private ToggleButton heatmap_btn;
+    @FXML
     private Button info_mode_btn;
     @FXML
     private Button add_mode_btn;
     @FXML
-    private HBox stack_box;
+    private ListView<Integer> stack_view;
     @FXML
-    private HBox memory_box;
+    private ListView<Integer> memory_view;
     @FXML
     private Label output;
+    @FXML
+    private TextField input_field;
 
-    private Color[][] mycelium_program;
-    private int cell_render_size;
+    // the program's pixels as 0xRRGGBB values, row by row
+    private int[] mycelium_program;
+    private ProgramRenderer renderer;
     private int program_width;
     private int program_height;
     private MyceliumInterpreter interpreter;
+    // counts the cells run by the interpreter, if it was compiled while the heatmap was shown
+    private ExecutionProfile profile;
+    private long heatmap_drawn_at;
+    private TailOutputSink output_tail;
+    private AutoplayWorker autoplay;
+    private AnimationTimer autoplay_timer;
+    private final ObservableList<Integer> stack_items = FXCollections.observableArrayList();
+    private final ObservableList<Integer> memory_items = FXCollections.observableArrayList();
+    // the contents of the memory pages shown in the memory view, each up to its last non-zero cell
+    private final TreeMap<Integer, int[]> shown_memory = new TreeMap<>();
     private boolean is_compiled;
     private boolean in_info_mode;
     private int ip_x;
     private int ip_y;
+    // where the mouse was last dragged to, for panning the view
+    private double drag_x;
+    private double drag_y;
 
     public void initialize() {
-        this.canvas.setWidth(600);
-        this.canvas.setHeight(500);
-
-        this.cell_render_size = 20;
-        this.program_width = 600 / this.cell_render_size;
-        this.program_height = 500 / this.cell_render_size;
-        this.mycelium_program = new Color[this.program_width][this.program_height];
+        this.program_width = DEFAULT_PROGRAM_WIDTH;
+        this.program_height = DEFAULT_PROGRAM_HEIGHT;
+        this.mycelium_program = new int[this.program_width * this.program_height];
+        this.renderer = new ProgramRenderer(this.canvas, this.grid_canvas, this.overlay_canvas);
         this.interpreter = null; // :0
+        this.profile = null;
+        this.heatmap_drawn_at = 0;
+        this.output_tail = new TailOutputSink(OUTPUT_TAIL_SIZE);
+        this.autoplay = null;
+        this.autoplay_timer = null;
         this.is_compiled = false;
         this.in_info_mode = true;
         this.ip_x = 0;
         this.ip_y = 0;
+        this.drag_x = 0;
+        this.drag_y = 0;
+
+        this.speed_box.getItems().addAll(SPEED_NAMES);
+        this.speed_box.getSelectionModel().select(1);
+        this.speed_box.getSelectionModel().selectedIndexProperty().addListener((o, old_index, new_index) -> {
+            if (autoplay != null) autoplay.set_speed(SPEEDS[new_index.intValue()]);
+        });
 
         this.initialize_mycelium_program();
+        this.setup_canvases();
+        this.setup_data_views();
         this.setup_canvas_click_handler();
         this.setup_button_click_handlers();
-        this.draw_canvas();
+        this.renderer.set_program(mycelium_program, program_width, program_height);
         this.handle_state_changed(); // make it impossible to run program without compiling first
         right_pane.getChildren().add(new Label("Click somewhere to get info"));
     }
 
     private void initialize_mycelium_program() {
-        for (int x = 0; x < program_width; x++) {
-            for (int y = 0; y < program_height; y++) {
-                mycelium_program[x][y] = Color.rgb(255, 255, 255);
-            }
-        }
+        Arrays.fill(mycelium_program, 0xFFFFFF);
     }
 
-    private void draw_canvas() {
-        final GraphicsContext gfx = this.canvas.getGraphicsContext2D();
-
-        // clear the drawing from last time
-        gfx.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
-
-        // draw the cells
-        for (int x = 0; x < program_width; x++) {
-            for (int y = 0; y < program_height; y++) {
-                gfx.setFill(mycelium_program[x][y]);
-                gfx.fillRect(x * cell_render_size, y * cell_render_size, cell_render_size, cell_render_size);
-            }
-        }
-
-        final int width = (int) canvas.getWidth();
-        final int height = (int) canvas.getHeight();
-
-        // draw the columns
-        gfx.setStroke(Color.DARKGRAY);
-        gfx.setLineWidth(1);
-        for (int x = cell_render_size; x < width; x += cell_render_size) {
-            gfx.strokeLine(x, 0, x, height);
-        }
+    private int cell_at(int x, int y) {
+        return mycelium_program[y * program_width + x];
+    }
 
-        // draw the rows
-        for (int y = cell_render_size; y < height; y += cell_render_size) {
-            gfx.strokeLine(0, y, width, y);
+    /**
+     * Makes the canvases fill the space they are given, and lets the program be dragged around and zoomed with the
+     * scroll wheel.
+     */
+    private void setup_canvases() {
+        for (final Canvas layer : new Canvas[]{this.canvas, this.grid_canvas, this.overlay_canvas}) {
+            layer.widthProperty().bind(canvas_pane.widthProperty());
+            layer.heightProperty().bind(canvas_pane.heightProperty());
         }
+        canvas_pane.widthProperty().addListener(l -> renderer.draw());
+        canvas_pane.heightProperty().addListener(l -> renderer.draw());
 
-        // draw the location of the instruction pointer
-        if (ip_x >= 0 && ip_x < program_width && ip_y >= 0 && ip_y < program_height) {
-            gfx.setStroke(Color.BLACK);
-            gfx.setLineWidth(3);
-            gfx.fillRect(ip_x * cell_render_size, ip_y * cell_render_size, cell_render_size, cell_render_size);
-        }
+        canvas.setOnMousePressed(me -> {
+            drag_x = me.getX();
+            drag_y = me.getY();
+        });
+        canvas.setOnMouseDragged(me -> {
+            renderer.pan(me.getX() - drag_x, me.getY() - drag_y);
+            drag_x = me.getX();
+            drag_y = me.getY();
+        });
+        canvas.setOnScroll(se -> {
+            if (se.getDeltaY() != 0) renderer.zoom(se.getX(), se.getY(), se.getDeltaY() > 0 ? 1 : -1);
+        });
     }
 
     private void setup_canvas_click_handler() {
         canvas.setOnMouseClicked(me -> {
-            final int x_tile = (int) me.getX() / cell_render_size;
-            final int y_tile = (int) me.getY() / cell_render_size;
+            if (!me.isStillSincePress()) return; // the view was dragged
 
-            if (!(x_tile < 0 || y_tile < 0 || x_tile > program_width || y_tile > program_height)) {
+            final int x_tile = renderer.cell_x(me.getX());
+            final int y_tile = renderer.cell_y(me.getY());
+
+            if (!(x_tile < 0 || y_tile < 0)) {
                 if (in_info_mode) {
                     handle_info_mode(x_tile, y_tile);
                 } else {
@@ -134,17 +185,15 @@ public class Controller {
                     handle_state_changed();
                 }
             }
-
-            draw_canvas();
         });
     }
 
     private void setup_button_click_handlers() {
         compile_btn.setOnMouseClicked(me -> {
+            stop_autoplay();
             handle_compile();
-            draw_canvas();
-            memory_box.getChildren().clear();
-            stack_box.getChildren().clear();
+            renderer.draw_instruction_pointer(ip_x, ip_y);
+            clear_data_views();
             clear_output();
         });
 
@@ -152,51 +201,46 @@ public class Controller {
             if (this.is_compiled) {
                 final boolean not_done = interpreter.next();
                 if (!not_done) fore_btn.setDisable(true);
+                interpreter.output.flush();
 
-                ip_x = this.interpreter.ip_x;
-                ip_y = this.interpreter.ip_y;
-                draw_stack();
-                draw_memory();
-                draw_canvas();
+                draw_snapshot(interpreter.snapshot());
             }
         });
 
         clear_btn.setOnMouseClicked(me -> {
-            mycelium_program = new Color[this.program_width][this.program_height];
             ip_x = 0;
             ip_y = 0;
             initialize_mycelium_program();
             handle_state_changed();
-            draw_canvas();
-            memory_box.getChildren().clear();
-            stack_box.getChildren().clear();
+            renderer.set_program(mycelium_program, program_width, program_height);
+            clear_data_views();
         });
 
         this.autoplay_btn.setOnMouseClicked(me -> {
-            handle_state_changed();
-            handle_compile();
-
-            // calculate how many cycles it will take to run this program
-            int times_run = 0;
-            boolean has_next = true;
-            while (has_next) {
-                times_run++;
-                has_next = interpreter.next();
+            if (autoplay != null) {
+                stop_autoplay();
+                return;
             }
 
             handle_state_changed();
             handle_compile();
-
-            final Timeline timeline = new Timeline(new KeyFrame(Duration.seconds(0.1), e -> {
-                interpreter.next();
-                this.ip_x = interpreter.ip_x;
-                this.ip_y = interpreter.ip_y;
-                this.draw_stack();
-                this.draw_memory();
-                this.draw_canvas();
-            }));
-            timeline.setCycleCount(times_run - 1);
-            timeline.play();
+            fore_btn.setDisable(true);
+            autoplay_btn.setText("Stop");
+
+            // the worker runs the program and the timer draws at most one of its snapshots per frame
+            autoplay = new AutoplayWorker(
+                    interpreter,
+                    SPEEDS[speed_box.getSelectionModel().getSelectedIndex()],
+                    () -> Platform.runLater(this::handle_autoplay_frame)
+            );
+            autoplay_timer = new AnimationTimer() {
+                @Override
+                public void handle(long now) {
+                    handle_autoplay_frame();
+                }
+            };
+            autoplay.start();
+            autoplay_timer.start();
         });
 
         this.info_mode_btn.setOnMouseClicked(me -> {
@@ -205,6 +249,8 @@ public class Controller {
             right_pane.getChildren().add(new Label("Click somewhere to get info"));
         });
 
+        this.heatmap_btn.setOnAction(ae -> draw_heatmap());
+
         this.add_mode_btn.setOnMouseClicked(me -> {
             in_info_mode = false;
             right_pane.getChildren().clear();
@@ -272,12 +318,9 @@ public class Controller {
         g_slider.valueProperty().addListener(l -> when_changed.run());
         b_slider.valueProperty().addListener(l -> when_changed.run());
         add_button.setOnMouseClicked(me -> {
-            this.mycelium_program[x_tile][y_tile] = Color.rgb(
-                    (int) r_slider.getValue(),
-                    (int) g_slider.getValue(),
-                    (int) b_slider.getValue()
-            );
-            this.draw_canvas();
+            this.mycelium_program[y_tile * program_width + x_tile] =
+                    ((int) r_slider.getValue() << 16) | ((int) g_slider.getValue() << 8) | (int) b_slider.getValue();
+            this.renderer.cell_changed(x_tile, y_tile);
             this.handle_state_changed();
         });
 
@@ -286,45 +329,186 @@ public class Controller {
     }
 
     private void handle_info_mode(int x_tile, int y_tile) {
-        final Color clicked = this.mycelium_program[x_tile][y_tile];
-        final int r = (int) (clicked.getRed() * 255);
-        final int g = (int) (clicked.getGreen() * 255);
-        final int b = (int) (clicked.getBlue() * 255);
+        final int clicked = cell_at(x_tile, y_tile);
+        final int r = (clicked >> 16) & 0xFF;
+        final int g = (clicked >> 8) & 0xFF;
+        final int b = clicked & 0xFF;
 
         final Label location = new Label(String.format("Tile@(%d, %d)", x_tile, y_tile));
-        final Label color = new Label("" + clicked);
+        final Label color = new Label(String.format("0x%06x", clicked));
         final Label operation_info = new Label(Helpers.get_operation_description(r, g, b));
 
         right_pane.getChildren().clear();
         right_pane.getChildren().addAll(location, color, operation_info);
+        if (profile != null) {
+            right_pane.getChildren().add(new Label("Ran " + profile.count_at(x_tile, y_tile) + " times"));
+        }
     }
 
-    private void draw_stack() {
-        stack_box.getChildren().clear();
-        stack_box.getChildren().addAll(this.interpreter.stack.parallelStream()
-                .map(i -> {
-                    final Label l = new Label("" + i);
-                    l.setStyle("-fx-border-color: #000000; -fx-border-width: 0 1 0 1;");
-                    return l;
-                })
-                .collect(Collectors.toList())
-        );
+    private void setup_data_views() {
+        final String cell_style = "-fx-border-color: #000000; -fx-border-width: 0 1 0 1;";
+
+        stack_view.setItems(stack_items);
+        stack_view.setCellFactory(list -> new ListCell<Integer>() {
+            @Override
+            protected void updateItem(Integer value, boolean empty) {
+                super.updateItem(value, empty);
+                setStyle(empty ? null : cell_style);
+                setText(empty ? null : "" + value);
+            }
+        });
+
+        // memory items are addresses, except that the first item of every page is -(page + 1) and shows where it starts
+        memory_view.setItems(memory_items);
+        memory_view.setCellFactory(list -> new ListCell<Integer>() {
+            @Override
+            protected void updateItem(Integer item, boolean empty) {
+                super.updateItem(item, empty);
+
+                if (empty) {
+                    setStyle(null);
+                    setText(null);
+                } else if (item < 0) {
+                    setStyle(null);
+                    setText("@" + -(item + 1) * PagedMemory.PAGE_SIZE);
+                } else {
+                    setStyle(cell_style);
+                    setText("" + shown_memory.get(item >>> PagedMemory.PAGE_BITS)[item & (PagedMemory.PAGE_SIZE - 1)]);
+                }
+            }
+        });
     }
 
-    private void draw_memory() {
-        memory_box.getChildren().clear();
-        memory_box.getChildren().addAll(this.interpreter.memory.parallelStream()
-                .map(i -> {
-                    final Label l = new Label("" + i);
-                    l.setStyle("-fx-border-color: #000000; -fx-border-width: 0 1 0 1;");
-                    return l;
-                })
-                .collect(Collectors.toList())
-        );
+    /**
+     * Applies the stack changes in a snapshot to the stack view: everything above the first changed value is replaced.
+     */
+    private void draw_stack(InterpreterSnapshot snapshot) {
+        if (snapshot.stack_base < stack_items.size()) {
+            stack_items.remove(snapshot.stack_base, stack_items.size());
+        }
+
+        if (snapshot.stack_tail.length > 0) {
+            final List<Integer> pushed = new ArrayList<>(snapshot.stack_tail.length);
+            for (final int value : snapshot.stack_tail) pushed.add(value);
+            stack_items.addAll(pushed);
+        }
+
+        if (!stack_items.isEmpty()) stack_view.scrollTo(stack_items.size() - 1);
+    }
+
+    /**
+     * Applies the memory pages in a snapshot to the memory view, which shows only the pages which have been written to,
+     * each up to its last non-zero cell.
+     */
+    private void draw_memory(InterpreterSnapshot snapshot) {
+        if (snapshot.is_full) {
+            shown_memory.clear();
+            memory_items.clear();
+        }
+
+        // the changed pages are in ascending order, so the items of the pages before each one are only counted once
+        int start = 0;
+        int counted_to = Integer.MIN_VALUE;
+        for (int i = 0; i < snapshot.memory_pages.length; i++) {
+            final int page = snapshot.memory_pages[i];
+            final int[] values = snapshot.memory_values[i];
+            final int[] old_values = shown_memory.get(page);
+            final int old_length = old_values == null ? 0 : old_values.length;
+
+            // the page's items come after those of every page before it which is shown
+            for (final int[] shown : shown_memory.subMap(counted_to, true, page, false).values()) {
+                start += shown.length + 1;
+            }
+
+            if (values.length == 0) {
+                shown_memory.remove(page);
+            } else {
+                shown_memory.put(page, values);
+            }
+
+            if (old_length == 0 && values.length > 0) {
+                memory_items.add(start, -(page + 1));
+                memory_items.addAll(start + 1, page_addresses(page, 0, values.length));
+            } else if (old_length > 0 && values.length == 0) {
+                memory_items.remove(start, start + old_length + 1);
+            } else if (values.length > old_length) {
+                memory_items.addAll(start + 1 + old_length, page_addresses(page, old_length, values.length));
+            } else if (values.length < old_length) {
+                memory_items.remove(start + 1 + values.length, start + 1 + old_length);
+            }
+
+            if (values.length > 0) start += values.length + 1;
+            counted_to = page + 1;
+        }
+
+        // cells whose address is still shown may now be showing a stale value
+        if (snapshot.memory_pages.length > 0) memory_view.refresh();
+    }
+
+    private static List<Integer> page_addresses(int page, int from, int to) {
+        final List<Integer> addresses = new ArrayList<>(to - from);
+        for (int offset = from; offset < to; offset++) {
+            addresses.add(page * PagedMemory.PAGE_SIZE + offset);
+        }
+
+        return addresses;
+    }
+
+    private void clear_data_views() {
+        stack_items.clear();
+        memory_items.clear();
+        shown_memory.clear();
     }
 
-    private void write_output(String output) {
-        this.output.setText(this.output.getText() + output);
+    private void handle_autoplay_frame() {
+        if (autoplay == null) return;
+
+        final boolean is_running = autoplay.is_running();
+        final InterpreterSnapshot snapshot = autoplay.take_snapshot();
+        if (snapshot != null) draw_snapshot(snapshot);
+        if (!is_running) stop_autoplay();
+    }
+
+    private void stop_autoplay() {
+        if (autoplay == null) return;
+
+        autoplay.stop();
+        autoplay_timer.stop();
+        autoplay_btn.setText("Autoplay");
+
+        // the worker has stopped, so its last snapshot (if it hasn't already been drawn) is the current state
+        final InterpreterSnapshot snapshot = autoplay.take_snapshot();
+        autoplay = null;
+        autoplay_timer = null;
+        if (snapshot != null) draw_snapshot(snapshot);
+        if (interpreter != null) fore_btn.setDisable(interpreter.is_finished);
+    }
+
+    private void draw_snapshot(InterpreterSnapshot snapshot) {
+        ip_x = snapshot.ip_x;
+        ip_y = snapshot.ip_y;
+        draw_stack(snapshot);
+        draw_memory(snapshot);
+        if (profile != null && heatmap_btn.isSelected()
+                && System.nanoTime() - heatmap_drawn_at > HEATMAP_REFRESH_NANOS) {
+            draw_heatmap();
+        }
+        renderer.draw_instruction_pointer(ip_x, ip_y);
+        flush_output();
+    }
+
+    /**
+     * Shows the heatmap of the cells the program has run so far if the heatmap is turned on, or the program if not.
+     * Programs are only profiled if the heatmap was on when they were compiled.
+     */
+    private void draw_heatmap() {
+        renderer.show_heatmap(heatmap_btn.isSelected() ? profile : null);
+        heatmap_drawn_at = System.nanoTime();
+    }
+
+    private void flush_output() {
+        final String tail = output_tail.take_changed_tail();
+        if (tail != null) this.output.setText(tail);
     }
 
     private void clear_output() {
@@ -332,17 +516,31 @@ public class Controller {
     }
 
     private void handle_state_changed() {
+        stop_autoplay();
         this.is_compiled = false;
         this.interpreter = null;
+        if (this.profile != null) {
+            this.profile = null;
+            draw_heatmap();
+        }
         fore_btn.setDisable(true);
-        this.stack_box.getChildren().clear();
-        this.memory_box.getChildren().clear();
+        clear_data_views();
         clear_output();
     }
 
     private void handle_compile() {
         this.is_compiled = true;
-        this.interpreter = new MyceliumInterpreter(mycelium_program, this::write_output);
+        // output may be written from the autoplay worker, so only its tail is kept until the UI next draws
+        this.output_tail = new TailOutputSink(OUTPUT_TAIL_SIZE);
+        final MyceliumProgram program = new MyceliumProgram(mycelium_program, program_width, program_height);
+        this.interpreter = new MyceliumInterpreter(
+                program,
+                output_tail,
+                new StringInputSource(input_field.getText())
+        );
+        this.profile = heatmap_btn.isSelected() ? new ExecutionProfile(program) : null;
+        this.interpreter.set_profile(profile);
+        draw_heatmap();
         this.ip_x = 0;
         this.ip_y = 0;
         fore_btn.setDisable(false);
@@ -367,25 +565,19 @@ public class Controller {
             return;
         }
 
-        if (input_image.getWidth() != program_width || input_image.getHeight() != program_height) {
-            System.out.println("sizing of image is wrong.");
-        } else {
-            final Color[][] input_program = new Color[program_width][program_height];
-
-            for (int x = 0; x < program_width; x++) {
-                for (int y = 0; y < program_height; y++) {
-                    final int rgb = input_image.getRGB(x, y);
-                    final int b = rgb & 0xFF;
-                    final int g = (rgb >> 8) & 0xFF;
-                    final int r = (rgb >> 16) & 0xFF;
-                    input_program[x][y] = Color.rgb(r, g, b);
-                }
-            }
-
-            mycelium_program = input_program;
-            handle_state_changed();
-            draw_canvas();
+        try {
+            mycelium_program = MyceliumProgram.read_pixels(input_image);
+        } catch (IllegalArgumentException iae) {
+            System.out.println(iae.getMessage());
+            return;
         }
+
+        ip_x = 0;
+        ip_y = 0;
+        program_width = input_image.getWidth();
+        program_height = input_image.getHeight();
+        handle_state_changed();
+        renderer.set_program(mycelium_program, program_width, program_height);
     }
 
     public void handle_save_file() {
@@ -398,21 +590,7 @@ public class Controller {
         final File save_target = png_save_dialog.showSaveDialog(null);
         if (save_target == null) return;
 
-        final BufferedImage output_image = new BufferedImage(program_width, program_height, BufferedImage.TYPE_INT_RGB);
-        for (int x = 0; x < program_width; x++) {
-            for (int y = 0; y < program_height; y++) {
-                final Color color = mycelium_program[x][y];
-                final int r = (int) (color.getRed() * 255);
-                final int g = (int) (color.getGreen() * 255);
-                final int b = (int) (color.getBlue() * 255);
-
-                int result = r;
-                result = (result << 8) + g;
-                result = (result << 8) + b;
-
-                output_image.setRGB(x, y, result);
-            }
-        }
+        final BufferedImage output_image = MyceliumProgram.to_image(mycelium_program, program_width, program_height);
 
         try {
             ImageIO.write(output_image, "png", save_target);
@@ -0,0 +1,41 @@
+package sample;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Paged memory whose pages live in direct buffers outside of the Java heap, for programs which touch more memory than
+ * the heap should have to carry (or be scanned by the garbage collector for).
+ */
+public class DirectPagedMemory extends PagedMemory {
+    private IntBuffer[] pages;
+    private int count;
+
+    public DirectPagedMemory() {
+        this.pages = new IntBuffer[16];
+        this.count = 0;
+    }
+
+    @Override
+    protected int allocate_page() {
+        if (count == pages.length) {
+            pages = Arrays.copyOf(pages, count * 2);
+        }
+
+        // direct buffers are already zeroed when they are allocated
+        pages[count] = ByteBuffer.allocateDirect(PAGE_SIZE * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        return count++;
+    }
+
+    @Override
+    protected int read(int slot, int offset) {
+        return pages[slot].get(offset);
+    }
+
+    @Override
+    protected void write(int slot, int offset, int value) {
+        pages[slot].put(offset, value);
+    }
+}
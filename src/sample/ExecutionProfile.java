@@ -0,0 +1,127 @@
+package sample;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * How many times each cell of a program has run, counted by an interpreter which it was given to with
+ * {@link MyceliumInterpreter#set_profile}.
+ *
+ * Only the cells are counted while the program runs. Every cell always runs the same operation, so how many times each
+ * operation ran is worked out from the cells afterwards.
+ */
+public class ExecutionProfile {
+    private static final String[] OPCODE_NAMES = {
+            "nop", "direction", "jump", "conditional_jump", "translocate", "memory", "nop", "nop",
+            "push", "push_two", "stack", "math", "io", "nop", "nop", "nop"
+    };
+    private static final int SUB_OP_BITS = 5;
+
+    final MyceliumProgram program;
+    final long[] cell_counts;
+
+    public ExecutionProfile(MyceliumProgram program) {
+        this.program = program;
+        this.cell_counts = new long[program.cells.length];
+    }
+
+    public long count_at(int x, int y) {
+        return cell_counts[program.index_of(x, y)];
+    }
+
+    /**
+     * @return How many steps have been counted altogether.
+     */
+    public long total() {
+        long total = 0;
+        for (final long count : cell_counts) total += count;
+        return total;
+    }
+
+    /**
+     * @return The most times any one cell has run.
+     */
+    public long max_count() {
+        long max = 0;
+        for (final long count : cell_counts) max = Math.max(max, count);
+        return max;
+    }
+
+    /**
+     * @return How many times each operation ran, indexed by {@link #operation_of}.
+     */
+    public long[] operation_counts() {
+        final long[] counts = new long[16 << SUB_OP_BITS];
+        for (int i = 0; i < cell_counts.length; i++) {
+            if (cell_counts[i] != 0) counts[operation_of(program.cells[i])] += cell_counts[i];
+        }
+
+        return counts;
+    }
+
+    /**
+     * @return The index of a packed cell's operation in {@link #operation_counts}: its opcode followed by the bits of
+     *         its sub-operation.
+     */
+    static int operation_of(int cell) {
+        return (MyceliumProgram.opcode_of(cell) << SUB_OP_BITS) | MyceliumProgram.sub_op_of(cell);
+    }
+
+    /**
+     * Writes the profile as CSV, with a line for every cell which ran and then for every operation which ran. Cell
+     * lines have the kind "cell" and operation lines have the kind "op" and no position.
+     * @param out Where to write the profile to.
+     */
+    public void write_csv(Writer out) throws IOException {
+        out.write("kind,x,y,opcode,sub_op,count\n");
+        for (int i = 0; i < cell_counts.length; i++) {
+            if (cell_counts[i] == 0) continue;
+
+            final int cell = program.cells[i];
+            out.write("cell," + i % program.width + "," + i / program.width + ","
+                    + OPCODE_NAMES[MyceliumProgram.opcode_of(cell)] + "," + MyceliumProgram.sub_op_of(cell) + ","
+                    + cell_counts[i] + "\n");
+        }
+
+        final long[] operations = operation_counts();
+        for (int i = 0; i < operations.length; i++) {
+            if (operations[i] == 0) continue;
+
+            out.write("op,,," + OPCODE_NAMES[i >> SUB_OP_BITS] + "," + (i & ((1 << SUB_OP_BITS) - 1)) + ","
+                    + operations[i] + "\n");
+        }
+    }
+
+    /**
+     * Writes the profile as a JSON object, with the total steps counted, the program's size, and arrays of the cells
+     * and the operations which ran.
+     * @param out Where to write the profile to.
+     */
+    public void write_json(Writer out) throws IOException {
+        out.write("{\"steps\":" + total() + ",\"width\":" + program.width + ",\"height\":" + program.height
+                + ",\"cells\":[");
+        boolean is_first = true;
+        for (int i = 0; i < cell_counts.length; i++) {
+            if (cell_counts[i] == 0) continue;
+
+            final int cell = program.cells[i];
+            out.write((is_first ? "" : ",") + "\n{\"x\":" + i % program.width + ",\"y\":" + i / program.width
+                    + ",\"opcode\":\"" + OPCODE_NAMES[MyceliumProgram.opcode_of(cell)] + "\",\"sub_op\":"
+                    + MyceliumProgram.sub_op_of(cell) + ",\"count\":" + cell_counts[i] + "}");
+            is_first = false;
+        }
+
+        out.write("],\"ops\":[");
+        final long[] operations = operation_counts();
+        is_first = true;
+        for (int i = 0; i < operations.length; i++) {
+            if (operations[i] == 0) continue;
+
+            out.write((is_first ? "" : ",") + "\n{\"opcode\":\"" + OPCODE_NAMES[i >> SUB_OP_BITS] + "\",\"sub_op\":"
+                    + (i & ((1 << SUB_OP_BITS) - 1)) + ",\"count\":" + operations[i] + "}");
+            is_first = false;
+        }
+
+        out.write("]}\n");
+    }
+}
@@ -0,0 +1,268 @@
+package sample;
+
+import javax.imageio.ImageIO;
+import javax.management.JMException;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a Mycelium program saved as a PNG to completion without starting the JavaFX toolkit. The program's output goes
+ * to stdout and the number of steps it took and how long it ran for are reported on stderr. Input is read from stdin,
+ * or from a file if one is given. With --jit the hot parts of the program are compiled to bytecode as it runs.
+ *
+ * With --analyze the program's control flow is worked out first and reported on stderr, and if it shows the program
+ * can never halt then it isn't run at all and the runner exits with status 3.
+ *
+ * With --detect-loops the runner stops the program as soon as it is found to be stuck in a loop, and exits with status
+ * 4. Loop detection and limits need every step to be interpreted, so they take the place of --jit.
+ *
+ * The run can be limited with --max-steps, --max-stack, --max-calls, --max-memory (in cells) and --max-output (in
+ * characters). A program which goes over a limit is stopped and the runner exits with status 5.
+ *
+ * With --profile the number of times each cell and each operation ran is written to a file once the program stops, as
+ * JSON if the file's name ends with .json and as CSV otherwise. Profiling also takes the place of --jit.
+ *
+ * With --jmx the interpreter's metrics are registered as MBeans, so the run can be watched over JMX.
+ *
+ * With --checkpoint the state of the run is saved to a file every --checkpoint-interval seconds (60 by default) and
+ * once it stops. If the file already holds a checkpoint of the same program, the run carries on from there instead of
+ * starting over, with its input read again up to where it had got and its limits counted from there. Output printed
+ * after the checkpoint is printed again, unless it goes to a file given with --output, which is cut back to where it
+ * was when the checkpoint was taken.
+ *
+ * Usage: HeadlessRunner [--jit] [--analyze] [--detect-loops] [--jmx] [--max-steps n] [--max-stack n] [--max-calls n]
+ *                       [--max-memory n] [--max-output n] [--profile file] [--input file] [--output file]
+ *                       [--checkpoint file] [--checkpoint-interval seconds] program.png
+ */
+public class HeadlessRunner {
+    public static void main(String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        String program_path = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--jit") || args[i].equals("--analyze") || args[i].equals("--detect-loops")
+                    || args[i].equals("--jmx")) {
+                options.put(args[i].substring(2), "");
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else if (program_path == null) {
+                program_path = args[i];
+            } else {
+                program_path = null;
+                break;
+            }
+        }
+
+        if (program_path == null) {
+            usage();
+            return;
+        }
+
+        final ResourceLimits limits;
+        final double checkpoint_interval;
+        try {
+            limits = limits(options);
+            checkpoint_interval = Double.parseDouble(options.getOrDefault("checkpoint-interval", "60"));
+        } catch (NumberFormatException nfe) {
+            usage();
+            return;
+        }
+        if (!(checkpoint_interval > 0 && checkpoint_interval < Long.MAX_VALUE / 1e9)) {
+            usage();
+            return;
+        }
+
+        final MyceliumProgram program;
+        try {
+            program = load_program(new File(program_path));
+        } catch (IOException ioe) {
+            System.err.println("failed to open file: " + ioe.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        if (options.containsKey("analyze")) {
+            final ControlFlowGraph graph = ControlFlowGraph.analyze(program);
+            System.err.print(graph.report());
+            if (graph.never_halts()) {
+                System.err.println("not running a program which never halts");
+                System.exit(3);
+            }
+        }
+
+        final int status = run(program, new File(program_path).getName(), options, limits,
+                (long) (checkpoint_interval * 1e9));
+        if (status != 0) System.exit(status);
+    }
+
+    /**
+     * Runs a program as the options say, closing every file it opens before returning.
+     * @param name The name of the program, for its metrics.
+     * @return The status the runner should exit with.
+     */
+    private static int run(MyceliumProgram program, String name, Map<String, String> options, ResourceLimits limits,
+                           long checkpoint_interval_nanos) {
+        final String input_path = options.get("input");
+        final String output_path = options.get("output");
+        final String checkpoint_path = options.get("checkpoint");
+
+        try (final MappedFileInputSource mapped_input = input_path != null
+                     ? new MappedFileInputSource(Paths.get(input_path))
+                     : null;
+             final CheckpointLog checkpoints = checkpoint_path != null
+                     ? new CheckpointLog(Paths.get(checkpoint_path), program)
+                     : null;
+             final FileChannel output_channel = output_path != null
+                     ? FileChannel.open(Paths.get(output_path), StandardOpenOption.CREATE, StandardOpenOption.WRITE)
+                     : null;
+             final InterpreterMetrics metrics = options.containsKey("jmx") ? InterpreterMetrics.register(name) : null) {
+            final InputSource input = mapped_input != null
+                    ? mapped_input
+                    : new ReaderInputSource(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+
+            final OutputSink output;
+            if (output_channel != null) {
+                // carrying on from a checkpoint throws away what was printed after it
+                final long position = checkpoints != null && checkpoints.has_checkpoint()
+                        ? checkpoints.output_position()
+                        : 0;
+                output_channel.truncate(position);
+                output_channel.position(position);
+                output = new ChannelOutputSink(output_channel);
+            } else {
+                output = new ChannelOutputSink(new FileOutputStream(FileDescriptor.out).getChannel());
+            }
+
+            final MyceliumInterpreter interpreter = new MyceliumInterpreter(program, output, input);
+            if (checkpoints != null) {
+                if (checkpoints.has_checkpoint()) {
+                    try {
+                        checkpoints.restore(interpreter);
+                    } catch (IOException ioe) {
+                        System.err.println("failed to restore checkpoint: " + ioe.getMessage());
+                        return 1;
+                    }
+                    System.err.println("carrying on from step " + interpreter.steps);
+                }
+
+                interpreter.set_checkpoints(checkpoints, checkpoint_interval_nanos);
+            }
+
+            final ExecutionProfile profile = options.containsKey("profile") ? new ExecutionProfile(program) : null;
+            interpreter.set_profile(profile);
+            interpreter.set_metrics(metrics);
+
+            final long start = System.nanoTime();
+            final LoopDetector detector = options.containsKey("detect-loops") ? new LoopDetector() : null;
+            final boolean is_limited = detector != null || options.containsKey("max-steps")
+                    || options.containsKey("max-stack") || options.containsKey("max-calls")
+                    || options.containsKey("max-memory") || options.containsKey("max-output");
+            final RunResult result;
+            if (is_limited) {
+                result = interpreter.run(limits, detector);
+            } else if (options.containsKey("jit") && profile == null) {
+                result = new TracingEngine(interpreter).run_until_halt();
+            } else {
+                result = interpreter.run_until_halt();
+            }
+            output.finish();
+            final long elapsed = System.nanoTime() - start;
+
+            System.err.println(String.format("steps: %d, time: %.3f ms (%.0f steps/s)",
+                    result.steps,
+                    elapsed / 1e6,
+                    result.steps / Math.max(elapsed / 1e9, 1e-9)));
+
+            if (checkpoints != null) {
+                try {
+                    checkpoints.finish(interpreter);
+                } catch (IOException ioe) {
+                    System.err.println("failed to write checkpoint: " + ioe.getMessage());
+                    return 1;
+                }
+            }
+
+            if (profile != null) {
+                final String profile_path = options.get("profile");
+                try (final Writer out = Files.newBufferedWriter(Paths.get(profile_path), StandardCharsets.UTF_8)) {
+                    if (profile_path.endsWith(".json")) {
+                        profile.write_json(out);
+                    } else {
+                        profile.write_csv(out);
+                    }
+                } catch (IOException ioe) {
+                    System.err.println("failed to write profile: " + ioe.getMessage());
+                    return 1;
+                }
+            }
+
+            if (result.reason == RunResult.Reason.LOOP_DETECTED) {
+                System.err.println("stuck in a loop of " + detector.period() + " steps");
+                return 4;
+            } else if (result.reason != RunResult.Reason.HALTED) {
+                System.err.println("stopped: " + result.reason);
+                return 5;
+            }
+
+            return 0;
+        } catch (IOException ioe) {
+            System.err.println("failed to open file: " + ioe.getMessage());
+            return 1;
+        } catch (JMException jme) {
+            System.err.println("failed to register metrics: " + jme.getMessage());
+            return 1;
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage: HeadlessRunner [--jit] [--analyze] [--detect-loops] [--jmx] [--max-steps n]"
+                + " [--max-stack n] [--max-calls n] [--max-memory n] [--max-output n] [--profile file]"
+                + " [--input file] [--output file] [--checkpoint file] [--checkpoint-interval seconds]"
+                + " <program.png>");
+        System.exit(2);
+    }
+
+    /**
+     * @return The limits given by the --max options, with no limit for any which weren't.
+     * @throws NumberFormatException If one of the limits isn't a number, or is negative.
+     */
+    static ResourceLimits limits(Map<String, String> options) {
+        return new ResourceLimits(
+                limit(options, "max-steps", Long.MAX_VALUE),
+                (int) limit(options, "max-stack", Integer.MAX_VALUE),
+                (int) limit(options, "max-calls", Integer.MAX_VALUE),
+                limit(options, "max-memory", Long.MAX_VALUE),
+                limit(options, "max-output", Long.MAX_VALUE));
+    }
+
+    /**
+     * @param max The largest the limit can be, which is also what it is if it wasn't given.
+     * @throws NumberFormatException If the limit isn't a number between 0 and max.
+     */
+    private static long limit(Map<String, String> options, String name, long max) {
+        final String value = options.get(name);
+        if (value == null) return max;
+
+        final long limit = Long.parseLong(value);
+        if (limit < 0 || limit > max) throw new NumberFormatException("--" + name + " must be between 0 and " + max);
+        return limit;
+    }
+
+    static MyceliumProgram load_program(File file) throws IOException {
+        final BufferedImage image = ImageIO.read(file);
+        if (image == null) throw new IOException(file + " is not an image");
+
+        return MyceliumProgram.from_image(image);
+    }
+}
@@ -0,0 +1,36 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * Paged memory whose pages are plain int arrays on the Java heap.
+ */
+public class HeapPagedMemory extends PagedMemory {
+    private int[][] pages;
+    private int count;
+
+    public HeapPagedMemory() {
+        this.pages = new int[16][];
+        this.count = 0;
+    }
+
+    @Override
+    protected int allocate_page() {
+        if (count == pages.length) {
+            pages = Arrays.copyOf(pages, count * 2);
+        }
+
+        pages[count] = new int[PAGE_SIZE];
+        return count++;
+    }
+
+    @Override
+    protected int read(int slot, int offset) {
+        return pages[slot][offset];
+    }
+
+    @Override
+    protected void write(int slot, int offset, int value) {
+        pages[slot][offset] = value;
+    }
+}
@@ -0,0 +1,73 @@
+package sample;
+
+/**
+ * Where a program's input comes from. Characters are read into a buffer in batches by {@link #fill(char[])} and
+ * handed out one at a time, so reading a character doesn't allocate anything.
+ *
+ * Once the input is exhausted every read returns {@link #EOF}, which is what the program sees on its stack.
+ */
+public abstract class InputSource {
+    static final int EOF = -1;
+    private static final int BUFFER_SIZE = 8192;
+
+    private final char[] buffer;
+    private int position;
+    private int length;
+    private boolean is_exhausted;
+    private long chars_read;
+
+    protected InputSource() {
+        this.buffer = new char[BUFFER_SIZE];
+        this.position = 0;
+        this.length = 0;
+        this.is_exhausted = false;
+        this.chars_read = 0;
+    }
+
+    /**
+     * @return A source with no input at all.
+     */
+    public static InputSource empty() {
+        return new InputSource() {
+            @Override
+            protected int fill(char[] buffer) {
+                return -1;
+            }
+        };
+    }
+
+    /**
+     * Reads the next batch of input.
+     * @param buffer Where to put the input.
+     * @return How many characters were read, or -1 if there is no more input. Only returns 0 if the buffer is empty.
+     */
+    protected abstract int fill(char[] buffer);
+
+    /**
+     * @return The next character of input, or {@link #EOF} if there is none left.
+     */
+    public int read_char() {
+        if (position == length) {
+            if (is_exhausted) return EOF;
+
+            final int read = fill(buffer);
+            if (read <= 0) {
+                is_exhausted = true;
+                return EOF;
+            }
+
+            position = 0;
+            length = read;
+        }
+
+        chars_read++;
+        return buffer[position++];
+    }
+
+    /**
+     * @return How many characters have been read, not counting reads which hit the end of the input.
+     */
+    public long chars_read() {
+        return chars_read;
+    }
+}
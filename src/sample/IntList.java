@@ -0,0 +1,95 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, used for the interpreter's stack so that pushing a value never boxes it.
+ *
+ * The list also remembers the lowest index which has been changed or removed since {@link #clear_dirty()} was last
+ * called, so that whoever is mirroring it only has to copy what came after that.
+ */
+public class IntList {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] values;
+    private int size;
+    private int dirty_from;
+
+    public IntList() {
+        this.values = new int[INITIAL_CAPACITY];
+        this.size = 0;
+        this.dirty_from = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int index) {
+        return values[index];
+    }
+
+    public void set(int index, int value) {
+        if (index < dirty_from) dirty_from = index;
+        values[index] = value;
+    }
+
+    public void add(int value) {
+        if (size == values.length) {
+            grow(size + 1);
+        }
+
+        values[size++] = value;
+    }
+
+    /**
+     * Removes the last value in the list.
+     * @return The value which was removed, or 0 if the list was empty.
+     */
+    public int pop() {
+        if (size == 0) {
+            return 0;
+        } else {
+            final int value = values[--size];
+            if (size < dirty_from) dirty_from = size;
+            return value;
+        }
+    }
+
+    public void clear() {
+        size = 0;
+        dirty_from = 0;
+    }
+
+    /**
+     * @return The lowest index whose value may have changed since the last call to {@link #clear_dirty()}. Every
+     * value before it is the same as it was then.
+     */
+    public int dirty_from() {
+        return dirty_from;
+    }
+
+    public void clear_dirty() {
+        dirty_from = size;
+    }
+
+    public int[] to_array() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public int[] copy_range(int from, int to) {
+        return Arrays.copyOfRange(values, from, to);
+    }
+
+    private void grow(int min_capacity) {
+        int capacity = values.length * 2;
+        if (capacity < min_capacity) capacity = min_capacity;
+
+        values = Arrays.copyOf(values, capacity);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(to_array());
+    }
+}
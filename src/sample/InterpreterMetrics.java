@@ -0,0 +1,186 @@
+package sample;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of an interpreter, which are registered as an MBean for as long as they are open so they can be watched
+ * over JMX, along with the {@link AggregateMetrics} of every interpreter in the process.
+ *
+ * The interpreter they're given to with {@link MyceliumInterpreter#set_metrics} updates them once every batch of
+ * steps rather than every step, and only its thread writes to them, so they cost the run next to nothing.
+ */
+public class InterpreterMetrics implements InterpreterMetricsMXBean, AutoCloseable {
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+    private static final AtomicLong next_id = new AtomicLong();
+
+    final ObjectName object_name;
+    private final AggregateMetrics aggregate;
+    private final String name;
+    private volatile long steps;
+    private volatile double steps_per_second;
+    private volatile int stack_depth;
+    private volatile int peak_stack_depth;
+    private volatile int call_depth;
+    private volatile int peak_call_depth;
+    private volatile long memory_cells;
+    private volatile long peak_memory_cells;
+    private volatile long output_chars;
+    private volatile String termination_reason;
+    // how long the interpreter has spent in runs which have stopped, and when the current run started
+    private volatile long finished_run_nanos;
+    private volatile long run_start;
+    private volatile boolean is_running;
+    // when and at how many steps the window which steps per second are counted over began
+    private long window_start;
+    private long window_steps;
+
+    private InterpreterMetrics(String name, ObjectName object_name, AggregateMetrics aggregate) {
+        this.object_name = object_name;
+        this.aggregate = aggregate;
+        this.name = name;
+        this.steps = 0;
+        this.steps_per_second = 0;
+        this.stack_depth = 0;
+        this.peak_stack_depth = 0;
+        this.call_depth = 0;
+        this.peak_call_depth = 0;
+        this.memory_cells = 0;
+        this.peak_memory_cells = 0;
+        this.output_chars = 0;
+        this.termination_reason = "NOT_STARTED";
+        this.finished_run_nanos = 0;
+        this.is_running = false;
+    }
+
+    /**
+     * Makes metrics for an interpreter and registers them as an MBean named sample:type=Interpreter, with a number
+     * unique to the process as its id.
+     * @param name The name of the interpreter, such as the name of its program.
+     * @return The metrics, which should be closed once the interpreter is finished with.
+     */
+    public static InterpreterMetrics register(String name) throws JMException {
+        final ObjectName object_name = new ObjectName("sample:type=Interpreter,id=" + next_id.incrementAndGet()
+                + ",name=" + ObjectName.quote(name));
+        final InterpreterMetrics metrics = new InterpreterMetrics(name, object_name, AggregateMetrics.get());
+
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, object_name);
+        metrics.aggregate.open(metrics);
+        return metrics;
+    }
+
+    /**
+     * Unregisters the metrics. What they counted still counts towards the aggregate metrics.
+     */
+    @Override
+    public void close() throws JMException {
+        aggregate.close(this);
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(object_name);
+    }
+
+    void run_started(MyceliumInterpreter interpreter) {
+        final long now = System.nanoTime();
+        run_start = now;
+        window_start = now;
+        window_steps = interpreter.steps;
+        is_running = true;
+        termination_reason = "RUNNING";
+        sample(interpreter);
+    }
+
+    /**
+     * Updates the metrics with the interpreter's current state.
+     */
+    void sample(MyceliumInterpreter interpreter) {
+        final long current_steps = interpreter.steps;
+        steps = current_steps;
+        stack_depth = interpreter.stack.size();
+        call_depth = interpreter.calls.depth();
+        memory_cells = (long) interpreter.memory.page_count() * PagedMemory.PAGE_SIZE;
+        output_chars = interpreter.output.chars_printed();
+
+        if (stack_depth > peak_stack_depth) peak_stack_depth = stack_depth;
+        if (call_depth > peak_call_depth) peak_call_depth = call_depth;
+        if (memory_cells > peak_memory_cells) peak_memory_cells = memory_cells;
+
+        final long now = System.nanoTime();
+        if (is_running && now - window_start >= RATE_WINDOW_NANOS) {
+            steps_per_second = (current_steps - window_steps) * 1e9 / (now - window_start);
+            window_start = now;
+            window_steps = current_steps;
+        }
+    }
+
+    void run_stopped(MyceliumInterpreter interpreter, RunResult.Reason reason) {
+        sample(interpreter);
+        if (is_running) finished_run_nanos += System.nanoTime() - run_start;
+
+        is_running = false;
+        steps_per_second = 0;
+        termination_reason = reason.toString();
+        aggregate.run_stopped(reason);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getSteps() {
+        return steps;
+    }
+
+    @Override
+    public double getStepsPerSecond() {
+        return steps_per_second;
+    }
+
+    @Override
+    public double getAverageStepsPerSecond() {
+        final long nanos = finished_run_nanos + (is_running ? System.nanoTime() - run_start : 0);
+        return nanos == 0 ? 0 : steps * 1e9 / nanos;
+    }
+
+    @Override
+    public int getStackDepth() {
+        return stack_depth;
+    }
+
+    @Override
+    public int getPeakStackDepth() {
+        return peak_stack_depth;
+    }
+
+    @Override
+    public int getCallDepth() {
+        return call_depth;
+    }
+
+    @Override
+    public int getPeakCallDepth() {
+        return peak_call_depth;
+    }
+
+    @Override
+    public long getMemoryCells() {
+        return memory_cells;
+    }
+
+    @Override
+    public long getPeakMemoryCells() {
+        return peak_memory_cells;
+    }
+
+    @Override
+    public long getOutputChars() {
+        return output_chars;
+    }
+
+    @Override
+    public String getTerminationReason() {
+        return termination_reason;
+    }
+}
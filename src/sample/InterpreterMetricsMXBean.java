@@ -0,0 +1,44 @@
+package sample;
+
+/**
+ * The metrics of one interpreter, as seen over JMX. They are updated every {@link ResourceLimits#CHECK_INTERVAL} steps
+ * while the interpreter runs, so they can be that far behind, and the peaks can miss a peak which came and went
+ * between updates.
+ */
+public interface InterpreterMetricsMXBean {
+    String getName();
+
+    long getSteps();
+
+    /**
+     * @return How many steps were run per second over about the last second, or 0 if the interpreter isn't running.
+     */
+    double getStepsPerSecond();
+
+    /**
+     * @return How many steps were run per second over all the time the interpreter has been running.
+     */
+    double getAverageStepsPerSecond();
+
+    int getStackDepth();
+
+    int getPeakStackDepth();
+
+    int getCallDepth();
+
+    int getPeakCallDepth();
+
+    /**
+     * @return How many memory cells have been allocated, which happens a page at a time.
+     */
+    long getMemoryCells();
+
+    long getPeakMemoryCells();
+
+    long getOutputChars();
+
+    /**
+     * @return Why the last run stopped, or RUNNING if one is still running.
+     */
+    String getTerminationReason();
+}
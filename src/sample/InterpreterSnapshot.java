@@ -0,0 +1,52 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * An immutable copy of the state of an interpreter at one point in time, which can be handed to another thread (the
+ * UI) while the interpreter carries on running.
+ *
+ * Unless it is a full snapshot, the stack and memory are only described by how they changed since the previous
+ * snapshot of the same interpreter: the stack values from the first one which changed upwards, and the memory pages
+ * which were written to. Whoever consumes the snapshots has to apply every one of them in order.
+ */
+public class InterpreterSnapshot {
+    final int ip_x;
+    final int ip_y;
+    final int ip_dir;
+    final int mem_ptr;
+    final long steps;
+    final boolean is_finished;
+    final int call_depth;
+    final boolean is_full;
+    // the stack keeps its first stack_base values, and then continues with stack_tail
+    final int stack_base;
+    final int[] stack_tail;
+    // the changed memory pages in ascending order, and the contents of each up to its last non-zero cell
+    final int[] memory_pages;
+    final int[][] memory_values;
+
+    InterpreterSnapshot(MyceliumInterpreter interpreter, boolean is_full, int memory_since) {
+        this.ip_x = interpreter.ip_x;
+        this.ip_y = interpreter.ip_y;
+        this.ip_dir = interpreter.ip_dir;
+        this.mem_ptr = interpreter.mem_ptr;
+        this.steps = interpreter.steps;
+        this.is_finished = interpreter.is_finished;
+        this.call_depth = interpreter.calls.depth();
+        this.is_full = is_full;
+        this.stack_base = is_full ? 0 : interpreter.stack.dirty_from();
+        this.stack_tail = interpreter.stack.copy_range(stack_base, interpreter.stack.size());
+        this.memory_pages = interpreter.memory.pages_written_since(is_full ? 0 : memory_since);
+        this.memory_values = new int[memory_pages.length][];
+
+        final int[] page = new int[PagedMemory.PAGE_SIZE];
+        for (int i = 0; i < memory_pages.length; i++) {
+            interpreter.memory.read_page(memory_pages[i], page);
+
+            int length = page.length;
+            while (length > 0 && page[length - 1] == 0) length--;
+            memory_values[i] = Arrays.copyOf(page, length);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * Proves that a program is stuck in an infinite loop by finding a state of the interpreter which it has been in
+ * before: since running the program is deterministic, from then on it will keep going round the same loop forever.
+ *
+ * The interpreter's state is saved at steps spaced out by increasing powers of two, as in Brent's cycle detection
+ * algorithm, and compared with the current state after every step until the next one is saved. A loop of n steps is
+ * found within a few times n steps of the program entering it. Most steps only compare the position of the
+ * instruction pointer and a few counters; the stack, call stack and the pages of memory written since the state was
+ * saved are only compared once those all match.
+ *
+ * Reading input counts as changing the state, so a program which is reading through its input is never in a loop, but
+ * one which keeps reading after the input has run out can be.
+ */
+public class LoopDetector {
+    private long power;
+    private long saved_steps;
+    private int ip_x;
+    private int ip_y;
+    private int ip_dir;
+    private int mem_ptr;
+    private int stack_size;
+    private int call_depth;
+    private long chars_read;
+    private int[] stack;
+    private int[] calls;
+    private int memory_epoch;
+    private int[] pages;
+    private int[][] page_values;
+    private final int[] current_page;
+    private long period;
+
+    public LoopDetector() {
+        this.power = 1;
+        this.saved_steps = -1;
+        this.current_page = new int[PagedMemory.PAGE_SIZE];
+        this.period = 0;
+    }
+
+    /**
+     * Compares the interpreter with the saved state, and saves its state if it is time to.
+     * @param interpreter The interpreter, which must have been checked after every step since it was first checked.
+     * @return Whether the interpreter is in a loop.
+     */
+    public boolean check(MyceliumInterpreter interpreter) {
+        if (saved_steps >= 0 && matches(interpreter)) {
+            period = interpreter.steps - saved_steps;
+            return true;
+        }
+
+        if (saved_steps < 0 || interpreter.steps - saved_steps == power) {
+            if (saved_steps >= 0) power *= 2;
+            save(interpreter);
+        }
+
+        return false;
+    }
+
+    /**
+     * @return How many steps the loop which was found takes to go round, or 0 if none has been found.
+     */
+    public long period() {
+        return period;
+    }
+
+    private void save(MyceliumInterpreter interpreter) {
+        saved_steps = interpreter.steps;
+        ip_x = interpreter.ip_x;
+        ip_y = interpreter.ip_y;
+        ip_dir = interpreter.ip_dir;
+        mem_ptr = interpreter.mem_ptr;
+        stack_size = interpreter.stack.size();
+        call_depth = interpreter.calls.depth();
+        chars_read = interpreter.input.chars_read();
+        stack = interpreter.stack.to_array();
+        calls = interpreter.calls.to_array();
+
+        final PagedMemory memory = interpreter.memory;
+        memory_epoch = memory.advance_epoch();
+        pages = memory.populated_pages();
+        page_values = new int[pages.length][PagedMemory.PAGE_SIZE];
+        for (int i = 0; i < pages.length; i++) {
+            memory.read_page(pages[i], page_values[i]);
+        }
+    }
+
+    private boolean matches(MyceliumInterpreter interpreter) {
+        if (interpreter.ip_x != ip_x || interpreter.ip_y != ip_y || interpreter.ip_dir != ip_dir
+                || interpreter.mem_ptr != mem_ptr || interpreter.stack.size() != stack_size
+                || interpreter.calls.depth() != call_depth || interpreter.input.chars_read() != chars_read) {
+            return false;
+        }
+
+        for (int i = 0; i < stack_size; i++) {
+            if (interpreter.stack.get(i) != stack[i]) return false;
+        }
+        for (int i = 0; i < calls.length; i++) {
+            if (interpreter.calls.value_at(i) != calls[i]) return false;
+        }
+
+        // only the pages written since the state was saved can have changed
+        for (final int page : interpreter.memory.pages_written_since(memory_epoch)) {
+            interpreter.memory.read_page(page, current_page);
+
+            final int saved = Arrays.binarySearch(pages, page);
+            if (saved >= 0 ? !Arrays.equals(current_page, page_values[saved]) : !is_zero(current_page)) return false;
+        }
+
+        return true;
+    }
+
+    private static boolean is_zero(int[] values) {
+        for (final int value : values) {
+            if (value != 0) return false;
+        }
+
+        return true;
+    }
+}
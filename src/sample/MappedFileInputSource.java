@@ -0,0 +1,75 @@
+package sample;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads UTF-8 input from a file by mapping it into memory a window at a time and decoding straight out of the
+ * mapping, so large inputs are streamed without copying them through the heap.
+ */
+public class MappedFileInputSource extends InputSource implements AutoCloseable {
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private final FileChannel channel;
+    private final long size;
+    private final CharsetDecoder decoder;
+    private MappedByteBuffer window;
+    // where the current window starts in the file
+    private long window_start;
+
+    public MappedFileInputSource(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.window_start = 0;
+        this.window = map(0);
+    }
+
+    @Override
+    protected int fill(char[] buffer) {
+        final CharBuffer out = CharBuffer.wrap(buffer);
+
+        while (out.position() == 0) {
+            final long window_end = window_start + window.limit();
+            final boolean is_last_window = window_end == size;
+
+            decoder.decode(window, out, is_last_window);
+
+            if (out.position() == 0) {
+                if (is_last_window) {
+                    decoder.flush(out);
+                    return out.position() == 0 ? -1 : out.position();
+                }
+
+                // move the window along, keeping any bytes of a character which was split across the boundary
+                try {
+                    window_start += window.position();
+                    window = map(window_start);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+            }
+        }
+
+        return out.position();
+    }
+
+    private MappedByteBuffer map(long start) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
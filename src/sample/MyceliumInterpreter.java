@@ -1,101 +1,307 @@
 package sample;
 
-import javafx.scene.paint.Color;
-
-import java.io.IOException;
-import java.io.PipedOutputStream;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.function.Consumer;
-
 public class MyceliumInterpreter {
-    final List<Integer> stack;
-    final List<Integer> memory;
-    final List<Integer> gosubx;
-    final List<Integer> gosuby;
-    final List<Integer> gosubd;
-    final Color[][] image;
-    final Consumer<String> output;
+    /** The highest math sub-operation which pushes a result; the ones above it only pop their operands. */
+    static final int LAST_MATH_OP = 20;
+
+    final IntList stack;
+    final PagedMemory memory;
+    final CallStack calls;
+    final MyceliumProgram program;
+    final OutputSink output;
+    final InputSource input;
     final int img_width;
     final int img_height;
     int ip_x;
     int ip_y;
     int ip_dir;
     int mem_ptr;
+    long steps;
     boolean is_finished;
+    // counts every cell run, if the program is being profiled
+    private ExecutionProfile profile;
+    // kept up to date with how the interpreter is doing, if anything is watching it
+    private InterpreterMetrics metrics;
+    // where checkpoints are written to if the run is being checkpointed, how often, and when the next one is due
+    private CheckpointLog checkpoints;
+    private long checkpoint_interval_nanos;
+    private long next_checkpoint;
+    // the memory epoch which began when the last snapshot was taken
+    private int snapshot_epoch;
 
-    public MyceliumInterpreter(Color[][] image, Consumer<String> output) {
-        this.stack = new ArrayList<>();
-        this.memory = new ArrayList<>();
-        this.memory.add(0);
-        this.gosubx = new ArrayList<>();
-        this.gosuby = new ArrayList<>();
-        this.gosubd = new ArrayList<>();
-        this.image = image;
+    public MyceliumInterpreter(MyceliumProgram program, OutputSink output) {
+        this(program, output, InputSource.empty());
+    }
+
+    public MyceliumInterpreter(MyceliumProgram program, OutputSink output, InputSource input) {
+        this(program, output, input, new HeapPagedMemory());
+    }
+
+    public MyceliumInterpreter(MyceliumProgram program, OutputSink output, InputSource input, PagedMemory memory) {
+        this.stack = new IntList();
+        this.memory = memory;
+        this.calls = new CallStack();
+        this.program = program;
         this.output = output;
-        this.img_width = this.image.length; // TODO
-        this.img_height = this.image[0].length; // TODO: check these
+        this.input = input;
+        this.img_width = this.program.width;
+        this.img_height = this.program.height;
         this.ip_x = 0;
         this.ip_y = 0;
         this.ip_dir = 0;
         this.mem_ptr = 0;
+        this.steps = 0;
         this.is_finished = false;
+        this.profile = null;
+        this.metrics = null;
+        this.checkpoints = null;
+        this.checkpoint_interval_nanos = 0;
+        this.next_checkpoint = 0;
+        this.snapshot_epoch = 0;
     }
 
-    private static int pop(List<Integer> list) {
-        if (list.size() == 0) {
-            return 0;
-        } else {
-            return list.remove(list.size() - 1);
-        }
+    /**
+     * Counts every step from now on in a profile. Steps run by compiled code, such as the traces of a
+     * {@link TracingEngine}, aren't counted, and superinstructions aren't used while profiling so that every cell of
+     * them is.
+     * @param profile The profile to count steps in, which must be for this interpreter's program, or null to stop.
+     */
+    public void set_profile(ExecutionProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Keeps metrics up to date with how the interpreter is doing, once every {@link ResourceLimits#CHECK_INTERVAL}
+     * steps and at the start and end of every run.
+     * @param metrics The metrics to keep up to date, or null to stop.
+     */
+    public void set_metrics(InterpreterMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Writes a checkpoint to a log every so often while running, checking whether one is due once every
+     * {@link ResourceLimits#CHECK_INTERVAL} steps. The log takes the interpreter's snapshots to find out what changed
+     * between checkpoints, so nothing else should take them.
+     * @param checkpoints The log to write checkpoints to, or null to stop.
+     * @param interval_nanos How long to leave between checkpoints.
+     */
+    public void set_checkpoints(CheckpointLog checkpoints, long interval_nanos) {
+        this.checkpoints = checkpoints;
+        this.checkpoint_interval_nanos = interval_nanos;
+        this.next_checkpoint = System.nanoTime() + interval_nanos;
     }
 
     public boolean next() {
         if (is_finished) return false;
 
-        final int r = (int) (image[ip_x][ip_y].getRed() * 255);
-        final int g = (int) (image[ip_x][ip_y].getGreen() * 255);
-        final int b = (int) (image[ip_x][ip_y].getBlue() * 255);
+        step();
+        return true;
+    }
+
+    /**
+     * Runs the program for at most the given number of steps. Any output it printed is flushed before returning.
+     * @param max_steps The most steps to run for.
+     * @return How many steps were run and whether the program halted.
+     */
+    public RunResult run(long max_steps) {
+        final long start = steps;
+        final long end = max_steps > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + max_steps;
 
-        switch (r % 16) {
-            case 0:
-                break; // no-op
-            case 1:
-                change_dir(b);
-                break;
-            case 2:
-                jump(g, b);
+        if (metrics == null && checkpoints == null) {
+            run_steps(end);
+        } else {
+            start_run();
+            while (!is_finished && steps < end) {
+                run_steps(end - steps > ResourceLimits.CHECK_INTERVAL ? steps + ResourceLimits.CHECK_INTERVAL : end);
+                end_batch();
+            }
+        }
+
+        return finish_run(start, is_finished ? RunResult.Reason.HALTED : RunResult.Reason.STEP_LIMIT);
+    }
+
+    /**
+     * Runs the program like {@link #run(long)}, but stops as soon as the detector proves that it is stuck in a loop.
+     * @param max_steps The most steps to run for.
+     * @param detector The detector to check every step with, which should be used with this interpreter only.
+     * @return How many steps were run and whether the program halted or was found to be in a loop.
+     */
+    public RunResult run(long max_steps, LoopDetector detector) {
+        return run(ResourceLimits.steps(max_steps), detector);
+    }
+
+    /**
+     * Runs the program until it halts or goes over one of the limits.
+     * @param limits The limits to stop the program at.
+     * @param detector A detector to stop the program if it gets stuck in a loop, or null.
+     * @return How many steps were run and why the program stopped.
+     */
+    public RunResult run(ResourceLimits limits, LoopDetector detector) {
+        final long start = steps;
+        final long end = limits.max_steps > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + limits.max_steps;
+        start_run();
+
+        while (!is_finished && steps < end) {
+            final long batch_end = end - steps > ResourceLimits.CHECK_INTERVAL
+                    ? steps + ResourceLimits.CHECK_INTERVAL
+                    : end;
+
+            if (detector == null) {
+                run_steps(batch_end);
+            } else {
+                while (!is_finished && steps < batch_end) {
+                    if (detector.check(this)) return finish_run(start, RunResult.Reason.LOOP_DETECTED);
+
+                    step();
+                }
+            }
+
+            final RunResult.Reason exceeded = limits.exceeded_by(this);
+            if (exceeded != null) return finish_run(start, exceeded);
+            end_batch();
+        }
+
+        return finish_run(start, is_finished ? RunResult.Reason.HALTED : RunResult.Reason.STEP_LIMIT);
+    }
+
+    /**
+     * Runs the program until the instruction pointer leaves it, which may be never.
+     * @return How many steps were run.
+     */
+    public RunResult run_until_halt() {
+        return run(Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs the program until it halts or the condition is met. The condition is checked before every step.
+     * @param condition The condition to stop at.
+     * @return How many steps were run and whether the program halted or the condition stopped it.
+     */
+    public RunResult run_until(StopCondition condition) {
+        final long start = steps;
+        start_run();
+
+        while (!is_finished) {
+            if (condition.should_stop(this)) return finish_run(start, RunResult.Reason.STOPPED);
+
+            step();
+        }
+
+        return finish_run(start, RunResult.Reason.HALTED);
+    }
+
+    void start_run() {
+        if (metrics != null) metrics.run_started(this);
+    }
+
+    /**
+     * Brings the metrics up to date and writes a checkpoint if one is due, once every batch of steps.
+     */
+    void end_batch() {
+        if (metrics != null) metrics.sample(this);
+        // if the last checkpoint is still being written this one is put off, so try again after the next batch
+        if (checkpoints != null && System.nanoTime() - next_checkpoint >= 0 && checkpoints.try_checkpoint(this)) {
+            next_checkpoint = System.nanoTime() + checkpoint_interval_nanos;
+        }
+    }
+
+    /**
+     * Flushes the output and brings the metrics up to date at the end of a run.
+     * @param start How many steps had been run when the run started.
+     * @param reason Why the run stopped.
+     * @return The result of the run.
+     */
+    RunResult finish_run(long start, RunResult.Reason reason) {
+        output.flush();
+        if (metrics != null) metrics.run_stopped(this, reason);
+        return new RunResult(steps - start, reason);
+    }
+
+    /**
+     * @return The state of the interpreter, as the changes since the last snapshot was taken.
+     */
+    public InterpreterSnapshot snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * @param is_full Whether to copy the whole stack and memory rather than just what changed since the last snapshot.
+     * @return The state of the interpreter.
+     */
+    public InterpreterSnapshot snapshot(boolean is_full) {
+        final InterpreterSnapshot snapshot = new InterpreterSnapshot(this, is_full, snapshot_epoch);
+        forget_changes();
+
+        return snapshot;
+    }
+
+    /**
+     * Makes the next snapshot describe only what changes from now on, as if a snapshot had just been taken.
+     */
+    void forget_changes() {
+        stack.clear_dirty();
+        snapshot_epoch = memory.advance_epoch();
+    }
+
+    /**
+     * Runs steps until the program halts or the step count reaches the end, without flushing the output.
+     */
+    private void run_steps(long end) {
+        while (!is_finished && steps < end) {
+            // a superinstruction runs several steps at once, so it can only be used if they are all allowed
+            if (profile == null && end - steps >= MyceliumProgram.MAX_FUSED_LENGTH) {
+                fused_step();
+            } else {
+                step();
+            }
+        }
+    }
+
+    /**
+     * Runs a single step, whether or not the program has already finished.
+     */
+    void step() {
+        final int index = ip_y * img_width + ip_x;
+        final int cell = program.cells[index];
+        if (profile != null) profile.cell_counts[index]++;
+
+        final int sub_op = MyceliumProgram.sub_op_of(cell);
+        final int operand = MyceliumProgram.operand_of(cell);
+
+        switch (MyceliumProgram.opcode_of(cell)) {
+            case MyceliumProgram.OP_NOP:
                 break;
-            case 3:
-                conditional_jump(g, b);
+            case MyceliumProgram.OP_DIRECTION:
+                change_dir(sub_op);
                 break;
-            case 4:
-                handle_translocate(b);
+            case MyceliumProgram.OP_JUMP:
+                jump(operand);
                 break;
-            case 5:
-                handle_memory(b);
+            case MyceliumProgram.OP_CONDITIONAL_JUMP:
+                conditional_jump(operand);
                 break;
-            case 6:
-                // TODO
+            case MyceliumProgram.OP_TRANSLOCATE:
+                handle_translocate(sub_op);
                 break;
-            case 7:
-                // TODO
+            case MyceliumProgram.OP_MEMORY:
+                handle_memory(sub_op);
                 break;
-            case 8:
-                push_constant(256 * g + b);
+            case MyceliumProgram.OP_PUSH:
+                push_constant(operand);
                 break;
-            case 9:
-                push_constant(g);
-                push_constant(b);
+            case MyceliumProgram.OP_PUSH_TWO:
+                push_constant(operand >> 8);
+                push_constant(operand & 0xFF);
                 break;
-            case 10:
-                handle_stack(b);
+            case MyceliumProgram.OP_STACK:
+                handle_stack(sub_op);
                 break;
-            case 11:
-                handle_math(b);
+            case MyceliumProgram.OP_MATH:
+                handle_math(sub_op);
                 break;
-            case 12:
-                handle_io(b);
+            case MyceliumProgram.OP_IO:
+                handle_io(sub_op);
                 break;
             default:
                 break;
@@ -103,48 +309,115 @@ public class MyceliumInterpreter {
 
         move_instruction_pointer(1);
         check_done();
+        steps++;
+    }
 
-        return true;
+    /**
+     * Runs the superinstruction starting at the instruction pointer if there is one, which counts as however many steps
+     * it has cells, or a single step otherwise.
+     */
+    private void fused_step() {
+        final int index = ip_y * img_width + ip_x;
+        final int cell = program.cells[index];
+        final int fused = MyceliumProgram.fused_of(cell, ip_dir);
+        if (fused == MyceliumProgram.FUSED_NONE) {
+            step();
+            return;
+        }
+
+        final int second = program.cells[index + program.offset_of(ip_dir)];
+        int length = 2;
+        int distance = 0;
+
+        switch (fused) {
+            case MyceliumProgram.FUSED_PUSH_TWO_MATH: {
+                final int operand = MyceliumProgram.operand_of(cell);
+                final int sub_op = MyceliumProgram.sub_op_of(second);
+                if (sub_op <= LAST_MATH_OP) stack.add(math(sub_op, operand & 0xFF, operand >> 8));
+                break;
+            }
+            case MyceliumProgram.FUSED_PUSH_PUSH_MATH: {
+                final int third = program.cells[index + 2 * program.offset_of(ip_dir)];
+                final int sub_op = MyceliumProgram.sub_op_of(third);
+                if (sub_op <= LAST_MATH_OP) {
+                    stack.add(math(sub_op, MyceliumProgram.operand_of(second), MyceliumProgram.operand_of(cell)));
+                }
+                length = 3;
+                break;
+            }
+            case MyceliumProgram.FUSED_PUSH_MATH: {
+                final int sub_op = MyceliumProgram.sub_op_of(second);
+                final int operand = MyceliumProgram.operand_of(cell);
+                final int top = stack.size() - 1;
+                if (sub_op > LAST_MATH_OP) {
+                    stack.pop();
+                } else if (top < 0) {
+                    stack.add(math(sub_op, operand, 0));
+                } else {
+                    stack.set(top, math(sub_op, operand, stack.get(top)));
+                }
+                break;
+            }
+            case MyceliumProgram.FUSED_DUP_BRANCH: {
+                // the value being tested stays on the stack, and an empty stack is left with the 0 it tested
+                final int top = stack.size() - 1;
+                final int value = top < 0 ? 0 : stack.get(top);
+                if (top < 0) stack.add(0);
+                if (value == 0) distance = MyceliumProgram.operand_of(second);
+                break;
+            }
+            case MyceliumProgram.FUSED_LOAD_MATH_STORE: {
+                final int y = stack.pop();
+                memory.set(mem_ptr, math(MyceliumProgram.sub_op_of(second), memory.get(mem_ptr), y));
+                length = 3;
+                break;
+            }
+            default:
+                break;
+        }
+
+        move_instruction_pointer(length + distance);
+        check_done();
+        steps += length;
     }
 
-    private void change_dir(int b) {
-        this.ip_dir = b % 4;
+    private void change_dir(int direction) {
+        this.ip_dir = direction;
     }
 
-    private void jump(int g, int b) {
-        move_instruction_pointer(256 * g + b);
+    private void jump(int distance) {
+        move_instruction_pointer(distance);
     }
 
-    private void conditional_jump(int g, int b) {
-        if (pop(this.stack) == 0) {
-            jump(g, b);
+    private void conditional_jump(int distance) {
+        if (stack.pop() == 0) {
+            jump(distance);
         }
     }
 
-    private void handle_translocate(int b) {
-        switch (b % 4) {
+    private void handle_translocate(int sub_op) {
+        switch (sub_op) {
             case 0: // move to different location stored on stack
             {
-                final int ip_y = pop(this.stack);
-                final int ip_x = pop(this.stack);
+                final int ip_y = stack.pop();
+                final int ip_x = stack.pop();
                 translocate_ip(ip_x, ip_y);
             }
             break;
             case 1: // make a functional call
             {
-                gosubx.add(ip_x);
-                gosuby.add(ip_y);
-                gosubd.add(ip_dir);
-                final int ip_y = pop(this.stack);
-                final int ip_x = pop(this.stack);
+                calls.push(ip_x, ip_y, ip_dir);
+                final int ip_y = stack.pop();
+                final int ip_x = stack.pop();
                 translocate_ip(ip_x, ip_y);
             }
             break;
             case 2: // return from a function call
             {
-                ip_x = pop(this.gosubx);
-                ip_y = pop(this.gosuby);
-                ip_dir = pop(this.gosubd);
+                calls.pop();
+                ip_x = calls.x();
+                ip_y = calls.y();
+                ip_dir = calls.dir();
             }
             break;
             default:
@@ -152,59 +425,67 @@ public class MyceliumInterpreter {
         }
     }
 
-    private void handle_memory(int b) {
-        switch (b % 8) {
+    private void handle_memory(int sub_op) {
+        switch (sub_op) {
             case 0: // store a value in memory popped from the stack
-                memory.set(mem_ptr, pop(this.stack));
+                memory.set(mem_ptr, stack.pop());
                 break;
             case 1: // store a value on the stack that was in memory
                 stack.add(memory.get(mem_ptr));
                 break;
             case 2: // set the mem_ptr to a value popped from the stack
-                mem_ptr = pop(this.stack);
+                mem_ptr = stack.pop();
                 if (mem_ptr < 0) mem_ptr = 0;
-                if (mem_ptr >= memory.size()) resize_memory(mem_ptr);
                 break;
             case 3: // store the mem_ptr on the stack
                 stack.add(mem_ptr);
                 break;
             case 4: // increment the memory pointer
-                mem_ptr++;
-                if (mem_ptr >= memory.size()) resize_memory(mem_ptr);
+                increment_mem_ptr();
                 break;
             case 5: // decrement the memory pointer
-                if (mem_ptr > 0) {
-                    mem_ptr--;
-                }
+                decrement_mem_ptr();
                 break;
             default:
                 break;
         }
     }
 
+    void increment_mem_ptr() {
+        if (mem_ptr < Integer.MAX_VALUE) {
+            mem_ptr++;
+        }
+    }
+
+    void decrement_mem_ptr() {
+        if (mem_ptr > 0) {
+            mem_ptr--;
+        }
+    }
+
     private void push_constant(int i) {
         this.stack.add(i);
     }
 
-    private void handle_stack(int b) {
-        switch (b % 4) {
+    private void handle_stack(int sub_op) {
+        switch (sub_op) {
             case 0: // dump the top thing on the stack
-                pop(this.stack);
+                stack.pop();
                 break;
             case 1: // duplicate the top value on the stack
-                final int stack_value = pop(this.stack);
+                final int stack_value = stack.pop();
                 stack.add(stack_value);
                 stack.add(stack_value);
                 break;
             case 2: // swap the top two values on the stack
-                final int old_top = pop(this.stack);
-                final int old_bot = pop(this.stack);
+                final int old_top = stack.pop();
+                final int old_bot = stack.pop();
                 stack.add(old_top);
                 stack.add(old_bot);
                 break;
             case 3: // duplicate the top two stack values
-                final int x = pop(this.stack);
-                final int y = pop(this.stack);
+                final int x = stack.pop();
+                final int y = stack.pop();
                 stack.add(x);
                 stack.add(y);
                 stack.add(x);
@@ -215,89 +496,81 @@ public class MyceliumInterpreter {
         }
     }
 
-    private void handle_math(int b) {
-        final int x = pop(this.stack);
-        final int y = pop(this.stack);
+    private void handle_math(int sub_op) {
+        final int x = stack.pop();
+        final int y = stack.pop();
 
-        switch (b % 32) {
+        if (sub_op <= LAST_MATH_OP) {
+            stack.add(math(sub_op, x, y));
+        }
+    }
+
+    /**
+     * Applies a math operation.
+     * @param sub_op Which operation to apply, up to {@link #LAST_MATH_OP}.
+     * @param x The value which was on top of the stack.
+     * @param y The value which was below it.
+     * @return The result of the operation.
+     */
+    static int math(int sub_op, int x, int y) {
+        switch (sub_op) {
             case 0:
-                stack.add(x + y);
-                break;
+                return x + y;
             case 1:
-                stack.add(x - y);
-                break;
+                return x - y;
             case 2:
-                stack.add(x * y);
-                break;
+                return x * y;
             case 3:
-                stack.add(y == 0 ? 0 : x / y);
-                break;
+                return y == 0 ? 0 : x / y;
             case 4:
-                stack.add(y == 0 ? 0 : x % y);
-                break;
+                return y == 0 ? 0 : x % y;
             case 5:
-                stack.add(x | y);
-                break;
+                return x | y;
             case 6:
-                stack.add(x & y);
-                break;
+                return x & y;
             case 7:
-                stack.add(x ^ y);
-                break;
+                return x ^ y;
             case 8:
-                stack.add(~x);
-                break;
+                return ~x;
             case 9:
-                stack.add(x >> y);
-                break;
+                return x >> y;
             case 10:
-                stack.add(x >>> y);
-                break;
+                return x >>> y;
             case 11:
-                stack.add(x << y);
-                break;
+                return x << y;
             case 12:
-                stack.add(boolean_as_int(x == y));
-                break;
+                return boolean_as_int(x == y);
             case 13:
-                stack.add(boolean_as_int(x != y));
-                break;
+                return boolean_as_int(x != y);
             case 14:
-                stack.add(boolean_as_int(x > y));
-                break;
+                return boolean_as_int(x > y);
             case 15:
-                stack.add(boolean_as_int(x < y));
-                break;
+                return boolean_as_int(x < y);
             case 16:
-                stack.add(boolean_as_int(x >= y));
-                break;
+                return boolean_as_int(x >= y);
             case 17:
-                stack.add(boolean_as_int(x <= y));
-                break;
+                return boolean_as_int(x <= y);
             case 18:
-                stack.add(boolean_as_int(int_as_bool(x) && int_as_bool(y)));
-                break;
+                return boolean_as_int(int_as_bool(x) && int_as_bool(y));
             case 19:
-                stack.add(boolean_as_int(int_as_bool(x) || int_as_bool(y)));
-                break;
+                return boolean_as_int(int_as_bool(x) || int_as_bool(y));
             case 20:
-                stack.add(boolean_as_int(!int_as_bool(x)));
-                break;
+                return boolean_as_int(!int_as_bool(x));
             default:
-                break;
+                return 0;
         }
     }
 
-    private void handle_io(int b) {
-        switch (b % 4) {
+    private void handle_io(int sub_op) {
+        switch (sub_op) {
             case 0:
-                this.output.accept("" + (char) pop(this.stack));
+                this.output.print_char(stack.pop());
                 break;
-            case 1:
-                // TODO
+            case 1: // read a character, or -1 once the input has run out
+                stack.add(this.input.read_char());
                 break;
             case 2:
-                this.output.accept("" + pop(this.stack));
+                this.output.print_int(stack.pop());
                 break;
             default:
                 break;
@@ -334,12 +607,6 @@ public class MyceliumInterpreter {
         }
     }
 
-    private void resize_memory(int size) {
-        while (memory.size() <= size) {
-            memory.add(0);
-        }
-    }
-
     /**
      * Converts an integer to a boolean for use in math operations.
      * @param i The integer to be converted to a boolean.
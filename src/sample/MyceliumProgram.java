@@ -0,0 +1,364 @@
+package sample;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A Mycelium program decoded from its pixels into a flat array of packed cells, so that the interpreter never has to
+ * look at a color while it is running.
+ */
+public class MyceliumProgram {
+    static final int OP_NOP = 0;
+    static final int OP_DIRECTION = 1;
+    static final int OP_JUMP = 2;
+    static final int OP_CONDITIONAL_JUMP = 3;
+    static final int OP_TRANSLOCATE = 4;
+    static final int OP_MEMORY = 5;
+    static final int OP_PUSH = 8;
+    static final int OP_PUSH_TWO = 9;
+    static final int OP_STACK = 10;
+    static final int OP_MATH = 11;
+    static final int OP_IO = 12;
+
+    static final int FUSED_NONE = 0;
+    /** A push of two constants followed by a math operation on them, which is folded into one constant. */
+    static final int FUSED_PUSH_TWO_MATH = 1;
+    /** Two pushes followed by a math operation on them, which is folded into one constant. */
+    static final int FUSED_PUSH_PUSH_MATH = 2;
+    /** A push followed by a math operation on the constant and the value below it. */
+    static final int FUSED_PUSH_MATH = 3;
+    /** A duplicate followed by a conditional jump, which leaves the value it tests on the stack. */
+    static final int FUSED_DUP_BRANCH = 4;
+    /** A load from memory, a math operation on it and a store back to the same place. */
+    static final int FUSED_LOAD_MATH_STORE = 5;
+
+    /** The most cells one superinstruction covers. */
+    static final int MAX_FUSED_LENGTH = 3;
+
+    /** The most cells a program can have, which is as many as fit in an array. */
+    static final int MAX_CELLS = Integer.MAX_VALUE - 8;
+
+    // the first int of a program written by write_to
+    private static final int MAGIC = 0x4D594346;
+    // which bits of the operand are the sub-operation, for each opcode
+    private static final int[] SUB_OP_MASKS = {0, 3, 0, 0, 3, 7, 0, 0, 0, 0, 3, 31, 3, 0, 0, 0};
+    private static final int OPERAND_SHIFT = 4;
+    private static final int FUSED_SHIFT = 20;
+    private static final int FUSED_BITS = 3;
+
+    final int width;
+    final int height;
+    // every cell packed into one int, row by row, so that a step only ever reads one int wherever it goes: the opcode
+    // in the low 4 bits, then the 16 bit operand, then the superinstruction which starts there going in each direction
+    final int[] cells;
+
+    /**
+     * Decodes a program.
+     * @param rgb The pixels of the program as 0xRRGGBB values, row by row.
+     * @param width The width of the program in cells.
+     * @param height The height of the program in cells.
+     */
+    public MyceliumProgram(int[] rgb, int width, int height) {
+        this(width, height, decode(rgb.clone(), width, height));
+    }
+
+    /**
+     * Decodes a program from an image, where every pixel of the image is one cell of the program.
+     * @param image The image to decode.
+     * @return The decoded program.
+     */
+    public static MyceliumProgram from_image(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        // the pixels are only read for this, so they can be decoded where they are
+        return new MyceliumProgram(width, height, decode(read_pixels(image), width, height));
+    }
+
+    /**
+     * Reads the pixels of an image straight out of its raster where it is stored as 8 bit RGB, which is how PNGs
+     * usually load, rather than converting them one at a time through its color model.
+     * @param image The image to read.
+     * @return The pixels of the image as 0xRRGGBB values, row by row.
+     */
+    public static int[] read_pixels(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        check_size(width, height);
+        final int[] rgb = new int[width * height];
+        final Raster raster = image.getRaster();
+        final ColorModel model = image.getColorModel();
+
+        if (is_packed_rgb(model) && raster.getTransferType() == DataBuffer.TYPE_INT) {
+            raster.getDataElements(0, 0, width, height, rgb);
+            for (int i = 0; i < rgb.length; i++) rgb[i] &= 0xFFFFFF;
+        } else if (is_interleaved_rgb(model) && raster.getTransferType() == DataBuffer.TYPE_BYTE) {
+            // the elements of each pixel come in the order of the color model's components, red first
+            final int components = model.getNumComponents();
+            final byte[] row = new byte[width * components];
+            for (int y = 0; y < height; y++) {
+                raster.getDataElements(0, y, width, 1, row);
+                for (int x = 0, i = 0; x < width; x++, i += components) {
+                    rgb[y * width + x] = ((row[i] & 0xFF) << 16) | ((row[i + 1] & 0xFF) << 8) | (row[i + 2] & 0xFF);
+                }
+            }
+        } else {
+            image.getRGB(0, 0, width, height, rgb, 0, width);
+            for (int i = 0; i < rgb.length; i++) rgb[i] &= 0xFFFFFF;
+        }
+
+        return rgb;
+    }
+
+    /**
+     * Makes an image of a program, where every pixel of the image is one cell of the program.
+     * @param rgb The pixels of the program as 0xRRGGBB values, row by row.
+     * @param width The width of the program in cells.
+     * @param height The height of the program in cells.
+     * @return The image.
+     */
+    public static BufferedImage to_image(int[] rgb, int width, int height) {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.getRaster().setDataElements(0, 0, width, height, rgb);
+        return image;
+    }
+
+    private static boolean is_packed_rgb(ColorModel model) {
+        if (!(model instanceof DirectColorModel) || model.isAlphaPremultiplied()) return false;
+
+        final DirectColorModel direct = (DirectColorModel) model;
+        return direct.getColorSpace().isCS_sRGB() && direct.getRedMask() == 0xFF0000
+                && direct.getGreenMask() == 0xFF00 && direct.getBlueMask() == 0xFF;
+    }
+
+    private static boolean is_interleaved_rgb(ColorModel model) {
+        if (!(model instanceof ComponentColorModel) || model.isAlphaPremultiplied()) return false;
+        if (!model.getColorSpace().isCS_sRGB() || model.getNumColorComponents() != 3) return false;
+
+        for (final int size : model.getComponentSize()) {
+            if (size != 8) return false;
+        }
+
+        return true;
+    }
+
+    private MyceliumProgram(int width, int height, int[] cells) {
+        this.width = width;
+        this.height = height;
+        this.cells = cells;
+        find_superinstructions();
+    }
+
+    private static void check_size(int width, int height) {
+        if (width < 1 || height < 1 || (long) width * height > MAX_CELLS) {
+            throw new IllegalArgumentException("a program can't be " + width + " by " + height + " cells");
+        }
+    }
+
+    /**
+     * @return A hash of the program's cells, which doesn't depend on the superinstructions found in them.
+     */
+    int fingerprint() {
+        int hash = 31 * width + height;
+        for (final int cell : cells) hash = 31 * hash + (cell & ((1 << FUSED_SHIFT) - 1));
+        return hash;
+    }
+
+    /**
+     * Writes the decoded program, so it can be read back without decoding it again.
+     * @param out Where to write the program to.
+     */
+    public void write_to(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(width);
+        out.writeInt(height);
+        for (final int cell : cells) out.writeInt(cell & ((1 << FUSED_SHIFT) - 1));
+    }
+
+    /**
+     * Reads a program written by {@link #write_to}.
+     * @param in Where to read the program from.
+     * @return The program.
+     */
+    public static MyceliumProgram read_from(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) throw new IOException("not a decoded Mycelium program");
+
+        final int width = in.readInt();
+        final int height = in.readInt();
+        try {
+            check_size(width, height);
+        } catch (IllegalArgumentException iae) {
+            throw new IOException(iae.getMessage());
+        }
+
+        final int[] cells = new int[width * height];
+        for (int i = 0; i < cells.length; i++) cells[i] = in.readInt();
+
+        return new MyceliumProgram(width, height, cells);
+    }
+
+    int index_of(int x, int y) {
+        return y * width + x;
+    }
+
+    static int opcode_of(int cell) {
+        return cell & 0xF;
+    }
+
+    static int operand_of(int cell) {
+        return (cell >>> OPERAND_SHIFT) & 0xFFFF;
+    }
+
+    static int sub_op_of(int cell) {
+        return operand_of(cell) & SUB_OP_MASKS[opcode_of(cell)];
+    }
+
+    /**
+     * @return The superinstruction which starts at a cell going in the given direction.
+     */
+    static int fused_of(int cell, int dir) {
+        return (cell >>> (FUSED_SHIFT + FUSED_BITS * dir)) & ((1 << FUSED_BITS) - 1);
+    }
+
+    int opcode_at(int index) {
+        return opcode_of(cells[index]);
+    }
+
+    int sub_op_at(int index) {
+        return sub_op_of(cells[index]);
+    }
+
+    int operand_at(int index) {
+        return operand_of(cells[index]);
+    }
+
+    /**
+     * @return How far apart in the cell arrays two cells next to each other in the given direction are.
+     */
+    int offset_of(int dir) {
+        switch (dir) {
+            case 0:
+                return 1;
+            case 1:
+                return width;
+            case 2:
+                return -1;
+            default:
+                return -width;
+        }
+    }
+
+    /**
+     * Finds the runs of cells which the interpreter can run as one superinstruction when it arrives at the first of
+     * them going in the right direction. Arriving anywhere else in a run, by a jump or a translocation, runs the cells
+     * one at a time as usual.
+     */
+    private void find_superinstructions() {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (!can_start_superinstruction(opcode_at(index_of(x, y)))) continue;
+
+                int fused = 0;
+                for (int dir = 0; dir < 4; dir++) {
+                    fused |= superinstruction_at(x, y, dir) << (FUSED_BITS * dir);
+                }
+
+                cells[index_of(x, y)] |= fused << FUSED_SHIFT;
+            }
+        }
+    }
+
+    private static boolean can_start_superinstruction(int opcode) {
+        return opcode == OP_PUSH || opcode == OP_PUSH_TWO || opcode == OP_STACK || opcode == OP_MEMORY;
+    }
+
+    private int superinstruction_at(int x, int y, int dir) {
+        final int first = index_of(x, y);
+        final int second = cell_after(x, y, dir, 1);
+        final int third = cell_after(x, y, dir, 2);
+        if (second < 0) return FUSED_NONE;
+
+        switch (opcode_at(first)) {
+            case OP_PUSH_TWO:
+                if (opcode_at(second) == OP_MATH) return FUSED_PUSH_TWO_MATH;
+                break;
+            case OP_PUSH:
+                if (third >= 0 && opcode_at(second) == OP_PUSH && opcode_at(third) == OP_MATH) return FUSED_PUSH_PUSH_MATH;
+                if (opcode_at(second) == OP_MATH) return FUSED_PUSH_MATH;
+                break;
+            case OP_STACK:
+                if (sub_op_at(first) == 1 && opcode_at(second) == OP_CONDITIONAL_JUMP) return FUSED_DUP_BRANCH;
+                break;
+            case OP_MEMORY:
+                if (third >= 0 && sub_op_at(first) == 1
+                        && opcode_at(second) == OP_MATH && sub_op_at(second) <= MyceliumInterpreter.LAST_MATH_OP
+                        && opcode_at(third) == OP_MEMORY && sub_op_at(third) == 0) {
+                    return FUSED_LOAD_MATH_STORE;
+                }
+                break;
+            default:
+                break;
+        }
+
+        return FUSED_NONE;
+    }
+
+    /**
+     * @return The index of the cell the given distance away in the given direction, or -1 if it is outside the program.
+     */
+    private int cell_after(int x, int y, int dir, int distance) {
+        final int next_x = x + (dir == 0 ? distance : dir == 2 ? -distance : 0);
+        final int next_y = y + (dir == 1 ? distance : dir == 3 ? -distance : 0);
+        if (next_x < 0 || next_x >= width || next_y < 0 || next_y >= height) return -1;
+
+        return index_of(next_x, next_y);
+    }
+
+    /**
+     * Decodes the pixels of a program into its cells in place, without any superinstructions yet.
+     */
+    private static int[] decode(int[] rgb, int width, int height) {
+        check_size(width, height);
+        if (rgb.length != width * height) throw new IllegalArgumentException("the pixels don't fit the program");
+
+        for (int i = 0; i < rgb.length; i++) {
+            rgb[i] = decode_cell(rgb[i]);
+        }
+
+        return rgb;
+    }
+
+    private static int decode_cell(int rgb) {
+        final int r = (rgb >> 16) & 0xFF;
+        final int g = (rgb >> 8) & 0xFF;
+        final int b = rgb & 0xFF;
+
+        int opcode = r % 16;
+        switch (opcode) {
+            case OP_DIRECTION:
+            case OP_TRANSLOCATE:
+            case OP_MEMORY:
+            case OP_STACK:
+            case OP_MATH:
+            case OP_IO:
+            case OP_JUMP:
+            case OP_CONDITIONAL_JUMP:
+            case OP_PUSH:
+            case OP_PUSH_TWO:
+                break;
+            default:
+                opcode = OP_NOP; // un-implemented operations do nothing
+                break;
+        }
+
+        // sub-operations are the low bits of the operand, so aren't stored apart from it
+        return opcode | (((g << 8) | b) << OPERAND_SHIFT);
+    }
+}
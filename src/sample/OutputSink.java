@@ -0,0 +1,131 @@
+package sample;
+
+/**
+ * Where a program's output goes. Characters and numbers are collected in a buffer owned by the thread running the
+ * interpreter and only handed to {@link #write(char[], int)} in batches, when the buffer fills up or is flushed.
+ */
+public abstract class OutputSink {
+    private static final int BUFFER_SIZE = 8192;
+    // the longest an int can be when printed: "-2147483648"
+    private static final int MAX_INT_LENGTH = 11;
+
+    private final char[] buffer;
+    private int length;
+    private long chars_printed;
+
+    protected OutputSink() {
+        this.buffer = new char[BUFFER_SIZE];
+        this.length = 0;
+        this.chars_printed = 0;
+    }
+
+    /**
+     * @return A sink which throws everything away.
+     */
+    public static OutputSink discard() {
+        return new OutputSink() {
+            @Override
+            protected void write(char[] chars, int length) {
+            }
+        };
+    }
+
+    /**
+     * Receives a batch of output.
+     * @param chars The output, which is only valid until this method returns.
+     * @param length How many of the chars are output.
+     */
+    protected abstract void write(char[] chars, int length);
+
+    public void print_char(int c) {
+        if (length == buffer.length) flush();
+
+        buffer[length++] = (char) c;
+        chars_printed++;
+    }
+
+    public void print_int(int i) {
+        if (length + MAX_INT_LENGTH > buffer.length) flush();
+
+        final int start = length;
+        long value = i;
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+
+        // write the digits backwards, then turn them around
+        final int digits_start = length;
+        do {
+            buffer[length++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        for (int left = digits_start, right = length - 1; left < right; left++, right--) {
+            final char c = buffer[left];
+            buffer[left] = buffer[right];
+            buffer[right] = c;
+        }
+
+        chars_printed += length - start;
+    }
+
+    /**
+     * Passes everything printed so far on to {@link #write(char[], int)}.
+     */
+    public void flush() {
+        if (length > 0) {
+            write(buffer, length);
+            length = 0;
+        }
+    }
+
+    /**
+     * Flushes the output for good, once nothing more is going to be printed. Subclasses which hold anything back
+     * between batches write it out here.
+     */
+    public void finish() {
+        flush();
+    }
+
+    /**
+     * @return How many characters have been printed in total, including any still in the buffer.
+     */
+    public long chars_printed() {
+        return chars_printed;
+    }
+
+    /**
+     * @return How far through its destination the output has got, not counting anything still in the buffer. This is
+     * in characters, unless a subclass counts it in something else.
+     */
+    public long position() {
+        return chars_printed - length;
+    }
+
+    /**
+     * @return The first half of a surrogate pair which has been flushed but is held back until its other half is
+     * printed, or 0 if there isn't one. It is counted by {@link #chars_printed()} but not by {@link #position()}.
+     */
+    public char held_back() {
+        return 0;
+    }
+
+    /**
+     * Carries on from where the output of an earlier run left off, as if this sink had printed it.
+     * @param chars_printed How many characters had been printed.
+     * @param position How far through the destination the output had got, as given by {@link #position()}.
+     * @param held_back The char which was held back, as given by {@link #held_back()}.
+     */
+    void resume(long chars_printed, long position, char held_back) {
+        this.chars_printed = chars_printed;
+        resumed_at(position, held_back);
+    }
+
+    /**
+     * Called when the sink carries on from an earlier run, for subclasses which count their position themselves or
+     * hold chars back.
+     */
+    protected void resumed_at(long position, char held_back) {
+    }
+}
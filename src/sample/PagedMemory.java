@@ -0,0 +1,148 @@
+package sample;
+
+import java.util.Arrays;
+
+/**
+ * Sparse memory for the interpreter. Addresses are split into fixed-size pages which are only allocated the first time
+ * a non-zero value is stored in them, so any address can be read or written in constant time and the space used is
+ * proportional to the cells which have actually been touched. Every address which has never been written reads as 0.
+ *
+ * Pages are found through a two level directory of page slots. How the pages themselves are stored is left up to the
+ * subclasses.
+ *
+ * Every page also records the epoch in which it was last written, so that anything mirroring the memory can ask for
+ * just the pages which changed since the epoch it last looked in.
+ */
+public abstract class PagedMemory {
+    static final int PAGE_BITS = 10;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int DIRECTORY_SIZE = 1 << (31 - PAGE_BITS - TABLE_BITS);
+
+    // directory[top][middle] holds the slot of a page plus one, so that 0 means the page does not exist
+    private final int[][] directory;
+    private int[] page_numbers;
+    private int[] page_epochs;
+    private int page_count;
+    private int epoch;
+
+    protected PagedMemory() {
+        this.directory = new int[DIRECTORY_SIZE][];
+        this.page_numbers = new int[16];
+        this.page_epochs = new int[16];
+        this.page_count = 0;
+        this.epoch = 1;
+    }
+
+    /**
+     * Allocates storage for another page, filled with zeros.
+     * @return The slot of the new page, which is always the number of pages allocated before it.
+     */
+    protected abstract int allocate_page();
+
+    protected abstract int read(int slot, int offset);
+
+    protected abstract void write(int slot, int offset, int value);
+
+    public int get(int address) {
+        final int slot = slot_of(address >>> PAGE_BITS);
+        if (slot < 0) return 0;
+
+        return read(slot, address & (PAGE_SIZE - 1));
+    }
+
+    public void set(int address, int value) {
+        final int page = address >>> PAGE_BITS;
+        int slot = slot_of(page);
+
+        if (slot < 0) {
+            if (value == 0) return; // the page already reads as zero, so there is no need to create it
+            slot = create_page(page);
+        }
+
+        page_epochs[slot] = epoch;
+        write(slot, address & (PAGE_SIZE - 1), value);
+    }
+
+    /**
+     * @return The number of pages which have been allocated.
+     */
+    public int page_count() {
+        return page_count;
+    }
+
+    /**
+     * @return The numbers of every allocated page in ascending order. Page n holds addresses n * PAGE_SIZE up to
+     * (n + 1) * PAGE_SIZE - 1.
+     */
+    public int[] populated_pages() {
+        final int[] pages = Arrays.copyOf(page_numbers, page_count);
+        Arrays.sort(pages);
+        return pages;
+    }
+
+    /**
+     * Starts a new epoch. Pages written from now on are reported by {@link #pages_written_since(int)} for the returned
+     * epoch, and pages written before now are not.
+     * @return The new epoch.
+     */
+    public int advance_epoch() {
+        return ++epoch;
+    }
+
+    /**
+     * @param since An epoch returned by {@link #advance_epoch()}, or 0 for every page.
+     * @return The numbers of the pages written since that epoch began, in ascending order.
+     */
+    public int[] pages_written_since(int since) {
+        int count = 0;
+        final int[] pages = new int[page_count];
+        for (int slot = 0; slot < page_count; slot++) {
+            if (page_epochs[slot] >= since) pages[count++] = page_numbers[slot];
+        }
+
+        final int[] written = Arrays.copyOf(pages, count);
+        Arrays.sort(written);
+        return written;
+    }
+
+    /**
+     * Copies the contents of a page.
+     * @param page The number of the page to copy.
+     * @param into Where to copy it to, which must hold at least PAGE_SIZE values.
+     */
+    public void read_page(int page, int[] into) {
+        final int slot = slot_of(page);
+
+        for (int offset = 0; offset < PAGE_SIZE; offset++) {
+            into[offset] = slot < 0 ? 0 : read(slot, offset);
+        }
+    }
+
+    private int slot_of(int page) {
+        final int[] table = directory[page >>> TABLE_BITS];
+        if (table == null) return -1;
+
+        return table[page & (TABLE_SIZE - 1)] - 1;
+    }
+
+    private int create_page(int page) {
+        int[] table = directory[page >>> TABLE_BITS];
+        if (table == null) {
+            table = new int[TABLE_SIZE];
+            directory[page >>> TABLE_BITS] = table;
+        }
+
+        final int slot = allocate_page();
+        table[page & (TABLE_SIZE - 1)] = slot + 1;
+
+        if (page_count == page_numbers.length) {
+            page_numbers = Arrays.copyOf(page_numbers, page_count * 2);
+            page_epochs = Arrays.copyOf(page_epochs, page_count * 2);
+        }
+        page_numbers[page_count++] = page;
+
+        return slot;
+    }
+}
@@ -0,0 +1,357 @@
+package sample;
+
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Draws a program onto the editor's canvases, zoomed in or out by powers of two and panned to any part of it.
+ *
+ * At each zoom level the program is cut into square tiles of pixels, each one an image written in one go from the
+ * program's pixels: zoomed in, every cell is repeated for as many pixels as it covers, and zoomed out, every pixel is
+ * the cell at its top left. Tiles are drawn at their own size, so cells stay sharp rather than being smoothed by
+ * scaling. The tiles drawn most recently are kept off-screen, so panning only writes the tiles coming into view.
+ *
+ * Instead of the program, the renderer can show a heatmap of how many times each cell has run, on a log scale from dark
+ * red to white. Cells which haven't run show the program darkened.
+ */
+public class ProgramRenderer {
+    /** The most zoomed in level, where a cell is 2^level pixels across. */
+    static final int MAX_LEVEL = 5;
+    /** The most zoomed out level, where a pixel is 2^-level cells across. */
+    static final int MIN_LEVEL = -10;
+    // the first level at which the cells are large enough to have grid lines drawn around them
+    private static final int MIN_GRID_LEVEL = 3;
+    private static final int TILE_SIZE = 256;
+    private static final int MAX_CACHED_TILES = 128;
+
+    private final Canvas cell_canvas;
+    private final Canvas grid_canvas;
+    private final Canvas overlay_canvas;
+    // the cached tiles by key, least recently drawn first
+    private final LinkedHashMap<Long, WritableImage> tiles;
+    private final int[] tile_pixels;
+    private int[] pixels;
+    // how many times each cell has run, when the heatmap is shown
+    private long[] heat;
+    private double log_max_heat;
+    private int width;
+    private int height;
+    private int level;
+    // the top left of the view, in pixels at the current level from the top left of the program
+    private long origin_x;
+    private long origin_y;
+    private int ip_x;
+    private int ip_y;
+    // whether the zoom has been picked to fit the program, which waits until the view has a size
+    private boolean is_fitted;
+
+    public ProgramRenderer(Canvas cell_canvas, Canvas grid_canvas, Canvas overlay_canvas) {
+        this.cell_canvas = cell_canvas;
+        this.grid_canvas = grid_canvas;
+        this.overlay_canvas = overlay_canvas;
+        this.tiles = new LinkedHashMap<>(MAX_CACHED_TILES, 0.75f, true);
+        this.tile_pixels = new int[TILE_SIZE * TILE_SIZE];
+        this.pixels = new int[0];
+        this.heat = null;
+        this.log_max_heat = 0;
+        this.width = 0;
+        this.height = 0;
+        this.level = 0;
+        this.origin_x = 0;
+        this.origin_y = 0;
+        this.ip_x = -1;
+        this.ip_y = -1;
+        this.is_fitted = false;
+    }
+
+    /**
+     * Shows a new program, zoomed in as far as fits all of it in view, once the view has a size.
+     * @param pixels The pixels of the program as 0xRRGGBB values, row by row. Changes to them are only drawn once
+     *               {@link #cell_changed} says so.
+     * @param width The width of the program in cells.
+     * @param height The height of the program in cells.
+     */
+    public void set_program(int[] pixels, int width, int height) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.tiles.clear();
+        this.is_fitted = false;
+
+        draw();
+    }
+
+    /**
+     * Shows a heatmap of a profile of the program in place of the program itself, or updates the heatmap already shown
+     * with how the counts have changed since.
+     * @param profile The profile to show, or null to show the program again.
+     */
+    public void show_heatmap(ExecutionProfile profile) {
+        // the counts may still be going up on another thread, which can only make the heatmap a little out of date
+        heat = profile == null ? null : profile.cell_counts;
+        log_max_heat = profile == null ? 0 : Math.log1p(profile.max_count());
+        tiles.clear();
+
+        draw();
+    }
+
+    /**
+     * Redraws a cell whose pixel has changed.
+     */
+    public void cell_changed(int x, int y) {
+        // the cell is in one tile at every level
+        for (int tile_level = MIN_LEVEL; tile_level <= MAX_LEVEL; tile_level++) {
+            final long tile_x = to_pixels(tile_level, x) / TILE_SIZE;
+            final long tile_y = to_pixels(tile_level, y) / TILE_SIZE;
+            tiles.remove(tile_key(tile_level, tile_x, tile_y));
+        }
+
+        draw_cells();
+    }
+
+    /**
+     * Zooms in or out, keeping the cell under a point of the view where it is.
+     * @param view_x The x of the point in the view.
+     * @param view_y The y of the point in the view.
+     * @param levels How many levels to zoom in by, or out by if negative.
+     */
+    public void zoom(double view_x, double view_y, int levels) {
+        final int new_level = Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level + levels));
+        final int change = new_level - level;
+        if (change == 0) return;
+
+        final long point_x = origin_x + (long) view_x;
+        final long point_y = origin_y + (long) view_y;
+        origin_x = (change > 0 ? point_x << change : point_x >> -change) - (long) view_x;
+        origin_y = (change > 0 ? point_y << change : point_y >> -change) - (long) view_y;
+        level = new_level;
+
+        draw();
+    }
+
+    /**
+     * Moves the view, as if the program was dragged by the given distance.
+     */
+    public void pan(double dx, double dy) {
+        origin_x -= Math.round(dx);
+        origin_y -= Math.round(dy);
+        draw();
+    }
+
+    /**
+     * @return The x of the cell at a point of the view, or -1 if the point isn't over the program.
+     */
+    public int cell_x(double view_x) {
+        final long cell = to_cells(origin_x + (long) Math.floor(view_x));
+        return cell >= 0 && cell < width ? (int) cell : -1;
+    }
+
+    /**
+     * @return The y of the cell at a point of the view, or -1 if the point isn't over the program.
+     */
+    public int cell_y(double view_y) {
+        final long cell = to_cells(origin_y + (long) Math.floor(view_y));
+        return cell >= 0 && cell < height ? (int) cell : -1;
+    }
+
+    /**
+     * Redraws everything, for when the view has changed.
+     */
+    public void draw() {
+        if (!is_fitted && view_width() > 0 && view_height() > 0) fit();
+
+        draw_cells();
+        draw_grid();
+        draw_instruction_pointer(ip_x, ip_y);
+    }
+
+    /**
+     * Moves the instruction pointer on the overlay layer. When cells are too small to outline, the instruction pointer
+     * is drawn as a box around the cell that stays large enough to see.
+     */
+    public void draw_instruction_pointer(int ip_x, int ip_y) {
+        final GraphicsContext gfx = overlay_canvas.getGraphicsContext2D();
+        gfx.clearRect(0, 0, overlay_canvas.getWidth(), overlay_canvas.getHeight());
+        this.ip_x = ip_x;
+        this.ip_y = ip_y;
+
+        if (ip_x < 0 || ip_x >= width || ip_y < 0 || ip_y >= height) return;
+
+        final double cell_size = level >= 0 ? 1 << level : 1;
+        final double size = Math.max(cell_size, 9);
+        final double x = to_pixels(ip_x) - origin_x + (cell_size - size) / 2;
+        final double y = to_pixels(ip_y) - origin_y + (cell_size - size) / 2;
+
+        gfx.setStroke(Color.BLACK);
+        gfx.setLineWidth(3);
+        gfx.strokeRect(x + 1.5, y + 1.5, size - 3, size - 3);
+    }
+
+    private void fit() {
+        level = MAX_LEVEL;
+        while (level > MIN_LEVEL && (extent(width) > view_width() || extent(height) > view_height())) {
+            level--;
+        }
+
+        origin_x = 0;
+        origin_y = 0;
+        is_fitted = true;
+    }
+
+    private void draw_cells() {
+        final GraphicsContext gfx = cell_canvas.getGraphicsContext2D();
+        final double view_width = view_width();
+        final double view_height = view_height();
+        gfx.clearRect(0, 0, view_width, view_height);
+
+        // only the tiles which are both in view and over the program
+        final long first_x = Math.max(0, Math.floorDiv(origin_x, TILE_SIZE));
+        final long first_y = Math.max(0, Math.floorDiv(origin_y, TILE_SIZE));
+        final long last_x = Math.min((extent(width) - 1) / TILE_SIZE,
+                Math.floorDiv(origin_x + (long) view_width - 1, TILE_SIZE));
+        final long last_y = Math.min((extent(height) - 1) / TILE_SIZE,
+                Math.floorDiv(origin_y + (long) view_height - 1, TILE_SIZE));
+
+        for (long tile_y = first_y; tile_y <= last_y; tile_y++) {
+            for (long tile_x = first_x; tile_x <= last_x; tile_x++) {
+                gfx.drawImage(tile((int) tile_x, (int) tile_y),
+                        tile_x * TILE_SIZE - origin_x, tile_y * TILE_SIZE - origin_y);
+            }
+        }
+    }
+
+    private void draw_grid() {
+        final GraphicsContext gfx = grid_canvas.getGraphicsContext2D();
+        final double view_width = view_width();
+        final double view_height = view_height();
+        gfx.clearRect(0, 0, view_width, view_height);
+        if (level < MIN_GRID_LEVEL) return;
+
+        final int cell_size = 1 << level;
+        final double top = Math.max(0, -origin_y);
+        final double bottom = Math.min(view_height, extent(height) - origin_y);
+        final double left = Math.max(0, -origin_x);
+        final double right = Math.min(view_width, extent(width) - origin_x);
+
+        gfx.setStroke(Color.DARKGRAY);
+        gfx.setLineWidth(1);
+
+        // draw the columns
+        for (long x = Math.max(1, to_cells(origin_x) + 1); x < width; x++) {
+            final double line_x = x * cell_size - origin_x;
+            if (line_x >= view_width) break;
+            gfx.strokeLine(line_x, top, line_x, bottom);
+        }
+
+        // draw the rows
+        for (long y = Math.max(1, to_cells(origin_y) + 1); y < height; y++) {
+            final double line_y = y * cell_size - origin_y;
+            if (line_y >= view_height) break;
+            gfx.strokeLine(left, line_y, right, line_y);
+        }
+    }
+
+    /**
+     * @return The tile at the current level, writing it if it isn't cached.
+     */
+    private WritableImage tile(int tile_x, int tile_y) {
+        final long key = tile_key(level, tile_x, tile_y);
+        WritableImage image = tiles.get(key);
+        if (image != null) return image;
+
+        // the least recently drawn tile is overwritten rather than thrown away
+        if (tiles.size() >= MAX_CACHED_TILES) {
+            final Iterator<Map.Entry<Long, WritableImage>> eldest = tiles.entrySet().iterator();
+            image = eldest.next().getValue();
+            eldest.remove();
+        } else {
+            image = new WritableImage(TILE_SIZE, TILE_SIZE);
+        }
+
+        write_tile(image, tile_x, tile_y);
+        tiles.put(key, image);
+        return image;
+    }
+
+    private void write_tile(WritableImage image, int tile_x, int tile_y) {
+        final long left = (long) tile_x * TILE_SIZE;
+        final long top = (long) tile_y * TILE_SIZE;
+        long last_row = -1;
+
+        for (int y = 0; y < TILE_SIZE; y++) {
+            final long cell_y = to_cells(top + y);
+            final int row = y * TILE_SIZE;
+
+            if (cell_y == last_row) {
+                // zoomed in, a row of cells covers several rows of pixels
+                System.arraycopy(tile_pixels, row - TILE_SIZE, tile_pixels, row, TILE_SIZE);
+                continue;
+            }
+            last_row = cell_y;
+
+            for (int x = 0; x < TILE_SIZE; x++) {
+                final long cell_x = to_cells(left + x);
+                if (cell_x >= width || cell_y >= height) {
+                    tile_pixels[row + x] = 0;
+                } else {
+                    final int index = (int) cell_y * width + (int) cell_x;
+                    tile_pixels[row + x] = heat == null ? 0xFF000000 | pixels[index] : heat_color(index);
+                }
+            }
+        }
+
+        image.getPixelWriter().setPixels(0, 0, TILE_SIZE, TILE_SIZE, PixelFormat.getIntArgbInstance(),
+                tile_pixels, 0, TILE_SIZE);
+    }
+
+    private int heat_color(int index) {
+        if (heat[index] == 0) return 0xFF000000 | ((pixels[index] >> 2) & 0x3F3F3F);
+
+        // even a cell which has only run once is bright enough to tell from one which hasn't
+        final double heat_level = 0.2 + 0.8 * Math.log1p(heat[index]) / Math.max(log_max_heat, 1e-9);
+        return 0xFF000000 | (channel(3 * heat_level) << 16) | (channel(3 * heat_level - 1) << 8)
+                | channel(3 * heat_level - 2);
+    }
+
+    private static int channel(double level) {
+        return (int) (255 * Math.max(0, Math.min(1, level)));
+    }
+
+    private static long tile_key(int level, long tile_x, long tile_y) {
+        return ((long) (level - MIN_LEVEL) << 56) | (tile_x << 28) | tile_y;
+    }
+
+    private long to_pixels(long cells) {
+        return to_pixels(level, cells);
+    }
+
+    private static long to_pixels(int level, long cells) {
+        return level >= 0 ? cells << level : cells >> -level;
+    }
+
+    /**
+     * @return How many pixels a row or column of cells takes up, including any partly covered pixel at the end.
+     */
+    private long extent(long cells) {
+        return level >= 0 ? cells << level : (cells + (1L << -level) - 1) >> -level;
+    }
+
+    private long to_cells(long pixels) {
+        return level >= 0 ? pixels >> level : pixels << -level;
+    }
+
+    private double view_width() {
+        return cell_canvas.getWidth();
+    }
+
+    private double view_height() {
+        return cell_canvas.getHeight();
+    }
+}
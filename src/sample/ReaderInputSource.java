@@ -0,0 +1,30 @@
+package sample;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+/**
+ * Reads input from a {@link Reader}, such as stdin in headless mode.
+ */
+public class ReaderInputSource extends InputSource {
+    private final Reader reader;
+
+    public ReaderInputSource(Reader reader) {
+        this.reader = reader;
+    }
+
+    @Override
+    protected int fill(char[] buffer) {
+        try {
+            int read;
+            do {
+                read = reader.read(buffer, 0, buffer.length);
+            } while (read == 0);
+
+            return read;
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package sample;
+
+/**
+ * Limits on how much a single run of a program can use, for running programs which can't be trusted to stop by
+ * themselves.
+ *
+ * Only the step limit is exact. The others are checked every {@link #CHECK_INTERVAL} steps, so a program can go over
+ * them by as much as it can use in that many steps before it is stopped: a couple of values on the stack per step, one
+ * call per step, one page of memory per two steps and a dozen characters of output per step.
+ */
+public class ResourceLimits {
+    /** How many steps are run between checks of the limits other than the number of steps. */
+    static final int CHECK_INTERVAL = 1024;
+
+    public static final ResourceLimits UNLIMITED =
+            new ResourceLimits(Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    final long max_steps;
+    final int max_stack_depth;
+    final int max_call_depth;
+    final long max_memory_cells;
+    final long max_output_chars;
+
+    /**
+     * @param max_steps The most steps to run.
+     * @param max_stack_depth The most values the stack can hold.
+     * @param max_call_depth The most function calls which can be waiting to return.
+     * @param max_memory_cells The most memory cells which can be allocated, which happens a page at a time.
+     * @param max_output_chars The most characters the program can print.
+     */
+    public ResourceLimits(long max_steps, int max_stack_depth, int max_call_depth, long max_memory_cells,
+                          long max_output_chars) {
+        this.max_steps = max_steps;
+        this.max_stack_depth = max_stack_depth;
+        this.max_call_depth = max_call_depth;
+        this.max_memory_cells = max_memory_cells;
+        this.max_output_chars = max_output_chars;
+    }
+
+    /**
+     * @return Limits which only limit the number of steps.
+     */
+    public static ResourceLimits steps(long max_steps) {
+        return new ResourceLimits(max_steps, Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return Which limit the interpreter has gone over, apart from the step limit, or null if it is within them all.
+     */
+    RunResult.Reason exceeded_by(MyceliumInterpreter interpreter) {
+        if (interpreter.stack.size() > max_stack_depth) return RunResult.Reason.STACK_LIMIT;
+        if (interpreter.calls.depth() > max_call_depth) return RunResult.Reason.CALL_DEPTH_LIMIT;
+        if ((long) interpreter.memory.page_count() * PagedMemory.PAGE_SIZE > max_memory_cells) {
+            return RunResult.Reason.MEMORY_LIMIT;
+        }
+        if (interpreter.output.chars_printed() > max_output_chars) return RunResult.Reason.OUTPUT_LIMIT;
+
+        return null;
+    }
+}
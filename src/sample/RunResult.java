@@ -0,0 +1,38 @@
+package sample;
+
+/**
+ * What happened during a call to one of the interpreter's run methods.
+ */
+public class RunResult {
+    public enum Reason {
+        /** The instruction pointer left the program. */
+        HALTED,
+        /** The requested number of steps was run without the program halting. */
+        STEP_LIMIT,
+        /** The stop condition was met. */
+        STOPPED,
+        /** The program was found to be stuck in a loop which it can never leave. */
+        LOOP_DETECTED,
+        /** The stack held more values than the limit allows. */
+        STACK_LIMIT,
+        /** More function calls were waiting to return than the limit allows. */
+        CALL_DEPTH_LIMIT,
+        /** More memory was allocated than the limit allows. */
+        MEMORY_LIMIT,
+        /** More output was printed than the limit allows. */
+        OUTPUT_LIMIT
+    }
+
+    final long steps;
+    final Reason reason;
+
+    RunResult(long steps, Reason reason) {
+        this.steps = steps;
+        this.reason = reason;
+    }
+
+    @Override
+    public String toString() {
+        return reason + " after " + steps + " steps";
+    }
+}
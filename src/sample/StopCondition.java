@@ -0,0 +1,28 @@
+package sample;
+
+/**
+ * A condition checked before every step of {@link MyceliumInterpreter#run_until(StopCondition)}, so it should be
+ * cheap to evaluate.
+ */
+@FunctionalInterface
+public interface StopCondition {
+    boolean should_stop(MyceliumInterpreter interpreter);
+
+    /**
+     * @return A condition which stops when the instruction pointer is about to execute the given cell.
+     */
+    static StopCondition at_cell(int x, int y) {
+        return interpreter -> interpreter.ip_x == x && interpreter.ip_y == y;
+    }
+
+    /**
+     * @return A condition which stops once the interpreter has run the given total number of steps.
+     */
+    static StopCondition after_steps(long total_steps) {
+        return interpreter -> interpreter.steps >= total_steps;
+    }
+
+    default StopCondition or(StopCondition other) {
+        return interpreter -> should_stop(interpreter) || other.should_stop(interpreter);
+    }
+}
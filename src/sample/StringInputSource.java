@@ -0,0 +1,25 @@
+package sample;
+
+/**
+ * Reads input from a string, such as the contents of the input field in the UI.
+ */
+public class StringInputSource extends InputSource {
+    private final String input;
+    private int position;
+
+    public StringInputSource(String input) {
+        this.input = input;
+        this.position = 0;
+    }
+
+    @Override
+    protected int fill(char[] buffer) {
+        if (position == input.length()) return -1;
+
+        final int read = Math.min(buffer.length, input.length() - position);
+        input.getChars(position, position + read, buffer, 0);
+        position += read;
+
+        return read;
+    }
+}
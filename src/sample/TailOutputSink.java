@@ -0,0 +1,57 @@
+package sample;
+
+/**
+ * Keeps only the last part of a program's output in a ring buffer, for showing on screen. Output can be written by
+ * the thread running the interpreter while another thread reads the tail.
+ */
+public class TailOutputSink extends OutputSink {
+    private final char[] ring;
+    // where the next character goes, and how many of the ring's characters are output
+    private int end;
+    private int filled;
+    private boolean changed;
+
+    /**
+     * @param capacity How many of the most recent characters to keep.
+     */
+    public TailOutputSink(int capacity) {
+        this.ring = new char[capacity];
+        this.end = 0;
+        this.filled = 0;
+        this.changed = false;
+    }
+
+    @Override
+    protected synchronized void write(char[] chars, int length) {
+        // anything which would be overwritten straight away doesn't need copying
+        final int skip = Math.max(0, length - ring.length);
+        for (int i = skip; i < length; ) {
+            final int run = Math.min(length - i, ring.length - end);
+            System.arraycopy(chars, i, ring, end, run);
+            i += run;
+            end = (end + run) % ring.length;
+        }
+
+        filled = Math.min(ring.length, filled + length);
+        changed = true;
+    }
+
+    /**
+     * @return The most recent output, or null if nothing has been written since the last time this was called.
+     */
+    public synchronized String take_changed_tail() {
+        if (!changed) return null;
+        changed = false;
+
+        final int start = (end - filled + ring.length) % ring.length;
+        if (start + filled <= ring.length) {
+            return new String(ring, start, filled);
+        } else {
+            final int first = ring.length - start;
+            return new StringBuilder(filled)
+                    .append(ring, start, first)
+                    .append(ring, 0, filled - first)
+                    .toString();
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package sample;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiles straight-line stretches of a program, or traces, into JVM bytecode which the JIT can then optimise like any
+ * other Java code.
+ *
+ * A trace starts from an instruction pointer position and direction and follows the program for as long as where it
+ * goes next is known without running it: direction changes and jumps are followed while compiling, and conditional
+ * jumps whose condition is a constant are decided there and then. Values pushed within the trace are kept in local
+ * variables, and only written back to the interpreter's stack when the trace exits, so a push followed by arithmetic
+ * followed by a conditional jump never touches the stack at all. A trace ends at a conditional jump on an unknown value
+ * (with an exit for each way it can go), before a translocation, when the program halts, when it arrives back where it
+ * started, or once it is {@link #MAX_TRACE_LENGTH} cells long.
+ *
+ * Each trace is defined as a hidden class, so it can be unloaded again once the interpreter is gone. Hidden classes
+ * need Java 15 or later.
+ */
+public class TraceCompiler {
+    /** The most cells one trace can run. */
+    static final int MAX_TRACE_LENGTH = 512;
+
+    private static final String CLASS_NAME = "sample/GeneratedTrace";
+    private static final String INTERPRETER = "sample/MyceliumInterpreter";
+    private static final String INT_LIST = "sample/IntList";
+    private static final String MEMORY = "sample/PagedMemory";
+    private static final String OUTPUT = "sample/OutputSink";
+    private static final String INPUT = "sample/InputSource";
+
+    // the first local variable which holds a value; 0 is the trace itself and 1 the interpreter
+    private static final int FIRST_VALUE_LOCAL = 2;
+
+    private final MyceliumProgram program;
+    private final MethodHandles.Lookup lookup;
+
+    public TraceCompiler(MyceliumProgram program) {
+        this.program = program;
+        this.lookup = MethodHandles.lookup();
+    }
+
+    /**
+     * A compiled trace, with how many steps it can run at most.
+     */
+    static final class Trace {
+        final CompiledTrace code;
+        final int max_steps;
+
+        Trace(CompiledTrace code, int max_steps) {
+            this.code = code;
+            this.max_steps = max_steps;
+        }
+    }
+
+    /**
+     * Compiles the trace which starts at the given position and direction.
+     * @return The trace, or null if it would be empty because the cell it starts at has to be interpreted.
+     */
+    Trace compile(int start_x, int start_y, int start_dir) {
+        final ClassWriter writer = new ClassWriter(CLASS_NAME, "java/lang/Object", "sample/CompiledTrace");
+        writer.default_constructor("java/lang/Object");
+        final ClassWriter.MethodWriter method = writer.method(ClassWriter.ACC_PUBLIC, "run", "(L" + INTERPRETER + ";)V");
+
+        final int length = write_trace(method, start_x, start_y, start_dir, null);
+        if (length == 0) return null;
+
+        try {
+            final Class<?> type = lookup.defineHiddenClass(writer.to_bytes(), true).lookupClass();
+            return new Trace((CompiledTrace) type.getConstructor().newInstance(), length);
+        } catch (ReflectiveOperationException roe) {
+            throw new IllegalStateException("failed to load a compiled trace", roe);
+        }
+    }
+
+    /**
+     * Writes the code for the trace which starts at the given position and direction into an instance method whose
+     * only argument is the interpreter.
+     * @param exits If not null, every position and direction the trace can leave the instruction pointer at without
+     *              halting is added to it as {x, y, dir}.
+     * @return How many steps the trace runs at most, or 0 if it would be empty because the cell it starts at has to be
+     *         interpreted, in which case nothing is written.
+     */
+    int write_trace(ClassWriter.MethodWriter method, int start_x, int start_y, int start_dir, List<int[]> exits) {
+        final TraceState trace = new TraceState(method, exits);
+        int x = start_x;
+        int y = start_y;
+        int dir = start_dir;
+        int length = 0;
+
+        while (true) {
+            final int cell = program.index_of(x, y);
+            final int opcode = program.opcode_at(cell);
+            final int sub_op = program.sub_op_at(cell);
+            final int operand = program.operand_at(cell);
+
+            if (opcode == MyceliumProgram.OP_TRANSLOCATE) {
+                if (length == 0) return 0;
+                trace.spill();
+                trace.exit(x, y, dir, length, false);
+                break;
+            }
+
+            length++;
+            int distance = 1;
+            switch (opcode) {
+                case MyceliumProgram.OP_DIRECTION:
+                    dir = sub_op;
+                    break;
+                case MyceliumProgram.OP_JUMP:
+                    distance += operand;
+                    break;
+                case MyceliumProgram.OP_CONDITIONAL_JUMP: {
+                    final int condition = trace.pop();
+                    if (trace.is_constant(condition)) {
+                        if (trace.constant_value(condition) == 0) distance += operand;
+                        break;
+                    }
+
+                    // the condition is only known at run time, so this is as far as the trace goes
+                    trace.spill();
+                    final ClassWriter.Label not_taken = method.new_label();
+                    trace.load(condition);
+                    method.jump(ClassWriter.IFNE, not_taken);
+                    exit_after(trace, x, y, dir, operand + 1, length);
+                    method.mark(not_taken);
+                    exit_after(trace, x, y, dir, 1, length);
+                    return length;
+                }
+                default:
+                    compile_cell(trace, opcode, sub_op, operand);
+                    break;
+            }
+
+            x += dx(dir) * distance;
+            y += dy(dir) * distance;
+
+            if (x < 0 || x >= program.width || y < 0 || y >= program.height) {
+                trace.spill();
+                trace.exit(x, y, dir, length, true);
+                break;
+            }
+
+            if ((x == start_x && y == start_y && dir == start_dir) || length == MAX_TRACE_LENGTH) {
+                trace.spill();
+                trace.exit(x, y, dir, length, false);
+                break;
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Writes an exit for when the instruction pointer moves the given distance from a cell, halting if it has left the
+     * program. The virtual stack must already have been spilled.
+     */
+    private void exit_after(TraceState trace, int x, int y, int dir, int distance, int length) {
+        final int next_x = x + dx(dir) * distance;
+        final int next_y = y + dy(dir) * distance;
+        final boolean halts = next_x < 0 || next_x >= program.width || next_y < 0 || next_y >= program.height;
+
+        trace.exit(next_x, next_y, dir, length, halts);
+    }
+
+    private void compile_cell(TraceState trace, int opcode, int sub_op, int operand) {
+        final ClassWriter.MethodWriter method = trace.method;
+        final ClassWriter writer = method.owner();
+
+        switch (opcode) {
+            case MyceliumProgram.OP_MEMORY:
+                switch (sub_op) {
+                    case 0: {
+                        final int value = trace.pop();
+                        interpreter_field(method, "memory", "L" + MEMORY + ";");
+                        interpreter_field(method, "mem_ptr", "I");
+                        trace.load(value);
+                        method.op_u2(ClassWriter.INVOKEVIRTUAL, writer.method_ref(MEMORY, "set", "(II)V"));
+                        break;
+                    }
+                    case 1:
+                        interpreter_field(method, "memory", "L" + MEMORY + ";");
+                        interpreter_field(method, "mem_ptr", "I");
+                        method.op_u2(ClassWriter.INVOKEVIRTUAL, writer.method_ref(MEMORY, "get", "(I)I"));
+                        trace.push_result();
+                        break;
+                    case 2: {
+                        final int value = trace.pop();
+                        method.aload(1);
+                        trace.load(value);
+                        method.op(ClassWriter.ICONST_0);
+                        method.op_u2(ClassWriter.INVOKESTATIC, writer.method_ref("java/lang/Math", "max", "(II)I"));
+                        method.op_u2(ClassWriter.PUTFIELD, writer.field_ref(INTERPRETER, "mem_ptr", "I"));
+                        break;
+                    }
+                    case 3:
+                        interpreter_field(method, "mem_ptr", "I");
+                        trace.push_result();
+                        break;
+                    case 4:
+                        method.aload(1);
+                        method.op_u2(ClassWriter.INVOKEVIRTUAL, writer.method_ref(INTERPRETER, "increment_mem_ptr", "()V"));
+                        break;
+                    case 5:
+                        method.aload(1);
+                        method.op_u2(ClassWriter.INVOKEVIRTUAL, writer.method_ref(INTERPRETER, "decrement_mem_ptr", "()V"));
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            case MyceliumProgram.OP_PUSH:
+                trace.push_constant(operand);
+                break;
+            case MyceliumProgram.OP_PUSH_TWO:
+                trace.push_constant(operand >> 8);
+                trace.push_constant(operand & 0xFF);
+                break;
+            case MyceliumProgram.OP_STACK:
+                switch (sub_op) {
+                    case 0:
+                        trace.pop();
+                        break;
+                    case 1: {
+                        final int value = trace.pop();
+                        trace.push(value);
+                        trace.push(value);
+                        break;
+                    }
+                    case 2: {
+                        final int top = trace.pop();
+                        final int bottom = trace.pop();
+                        trace.push(top);
+                        trace.push(bottom);
+                        break;
+                    }
+                    case 3: {
+                        final int top = trace.pop();
+                        final int bottom = trace.pop();
+                        trace.push(top);
+                        trace.push(bottom);
+                        trace.push(top);
+                        trace.push(bottom);
+                        break;
+                    }
+                    default:
+                        break;
+                }
+                break;
+            case MyceliumProgram.OP_MATH: {
+                final int x = trace.pop();
+                final int y = trace.pop();
+                if (sub_op > MyceliumInterpreter.LAST_MATH_OP) break; // pops its operands and nothing else
+
+                if (trace.is_constant(x) && trace.is_constant(y)) {
+                    trace.push_constant(MyceliumInterpreter.math(sub_op,
+                            trace.constant_value(x), trace.constant_value(y)));
+                } else {
+                    compile_math(trace, sub_op, x, y);
+                    trace.push_result();
+                }
+                break;
+            }
+            case MyceliumProgram.OP_IO:
+                switch (sub_op) {
+                    case 0:
+                    case 2: {
+                        final int value = trace.pop();
+                        interpreter_field(method, "output", "L" + OUTPUT + ";");
+                        trace.load(value);
+                        method.op_u2(ClassWriter.INVOKEVIRTUAL,
+                                writer.method_ref(OUTPUT, sub_op == 0 ? "print_char" : "print_int", "(I)V"));
+                        break;
+                    }
+                    case 1:
+                        interpreter_field(method, "input", "L" + INPUT + ";");
+                        method.op_u2(ClassWriter.INVOKEVIRTUAL, writer.method_ref(INPUT, "read_char", "()I"));
+                        trace.push_result();
+                        break;
+                    default:
+                        break;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Writes the code for a math operation, leaving its result on the JVM stack.
+     */
+    private static void compile_math(TraceState trace, int sub_op, int x, int y) {
+        final ClassWriter.MethodWriter method = trace.method;
+        final int instruction;
+        switch (sub_op) {
+            case 0: instruction = ClassWriter.IADD; break;
+            case 1: instruction = ClassWriter.ISUB; break;
+            case 2: instruction = ClassWriter.IMUL; break;
+            case 5: instruction = ClassWriter.IOR; break;
+            case 6: instruction = ClassWriter.IAND; break;
+            case 7: instruction = ClassWriter.IXOR; break;
+            case 9: instruction = ClassWriter.ISHR; break;
+            case 10: instruction = ClassWriter.IUSHR; break;
+            case 11: instruction = ClassWriter.ISHL; break;
+            default: instruction = -1; break;
+        }
+
+        if (instruction >= 0) {
+            trace.load(x);
+            trace.load(y);
+            method.op(instruction);
+        } else if (sub_op == 8) {
+            trace.load(x);
+            method.push_int(-1);
+            method.op(ClassWriter.IXOR);
+        } else {
+            // the rest branch, so leave them to the interpreter's own implementation, which will be inlined
+            method.push_int(sub_op);
+            trace.load(x);
+            trace.load(y);
+            method.op_u2(ClassWriter.INVOKESTATIC, method.owner().method_ref(INTERPRETER, "math", "(III)I"));
+        }
+    }
+
+    private static void interpreter_field(ClassWriter.MethodWriter method, String name, String descriptor) {
+        method.aload(1);
+        method.op_u2(ClassWriter.GETFIELD, method.owner().field_ref(INTERPRETER, name, descriptor));
+    }
+
+    private static int dx(int dir) {
+        return dir == 0 ? 1 : dir == 2 ? -1 : 0;
+    }
+
+    private static int dy(int dir) {
+        return dir == 1 ? 1 : dir == 3 ? -1 : 0;
+    }
+
+    /**
+     * The values pushed so far in the trace which haven't been written back to the interpreter's stack yet. Values are
+     * referred to by handles: a handle of zero or more is the number of the local variable holding the value, and a
+     * negative handle refers to a constant.
+     */
+    private static final class TraceState {
+        final ClassWriter.MethodWriter method;
+        private final List<int[]> exits;
+        private int[] handles;
+        private int size;
+        private int[] constants;
+        private int constant_count;
+        private int next_local;
+
+        TraceState(ClassWriter.MethodWriter method, List<int[]> exits) {
+            this.method = method;
+            this.exits = exits;
+            this.handles = new int[16];
+            this.size = 0;
+            this.constants = new int[16];
+            this.constant_count = 0;
+            this.next_local = FIRST_VALUE_LOCAL;
+            method.reserve_locals(FIRST_VALUE_LOCAL);
+        }
+
+        void push_constant(int value) {
+            if (constant_count == constants.length) {
+                constants = Arrays.copyOf(constants, constant_count * 2);
+            }
+
+            constants[constant_count++] = value;
+            push(-constant_count);
+        }
+
+        /**
+         * Pushes the value on top of the JVM stack, storing it in a new local variable.
+         */
+        void push_result() {
+            final int local = next_local++;
+            method.istore(local);
+            push(local);
+        }
+
+        void push(int handle) {
+            if (size == handles.length) {
+                handles = Arrays.copyOf(handles, size * 2);
+            }
+
+            handles[size++] = handle;
+        }
+
+        /**
+         * Pops a value, popping it from the interpreter's stack if the trace hasn't pushed anything.
+         * @return The handle of the value.
+         */
+        int pop() {
+            if (size == 0) {
+                interpreter_field(method, "stack", "L" + INT_LIST + ";");
+                method.op_u2(ClassWriter.INVOKEVIRTUAL, method.owner().method_ref(INT_LIST, "pop", "()I"));
+                push_result();
+            }
+
+            return handles[--size];
+        }
+
+        boolean is_constant(int handle) {
+            return handle < 0;
+        }
+
+        int constant_value(int handle) {
+            return constants[-handle - 1];
+        }
+
+        void load(int handle) {
+            if (is_constant(handle)) {
+                method.push_int(constant_value(handle));
+            } else {
+                method.iload(handle);
+            }
+        }
+
+        /**
+         * Writes the values pushed in the trace back to the interpreter's stack.
+         */
+        void spill() {
+            for (int i = 0; i < size; i++) {
+                interpreter_field(method, "stack", "L" + INT_LIST + ";");
+                load(handles[i]);
+                method.op_u2(ClassWriter.INVOKEVIRTUAL, method.owner().method_ref(INT_LIST, "add", "(I)V"));
+            }
+        }
+
+        /**
+         * Writes the code which leaves the trace with the instruction pointer at the given position.
+         */
+        void exit(int x, int y, int dir, int length, boolean halts) {
+            final ClassWriter writer = method.owner();
+
+            method.aload(1);
+            method.push_int(x);
+            method.op_u2(ClassWriter.PUTFIELD, writer.field_ref(INTERPRETER, "ip_x", "I"));
+            method.aload(1);
+            method.push_int(y);
+            method.op_u2(ClassWriter.PUTFIELD, writer.field_ref(INTERPRETER, "ip_y", "I"));
+            method.aload(1);
+            method.push_int(dir);
+            method.op_u2(ClassWriter.PUTFIELD, writer.field_ref(INTERPRETER, "ip_dir", "I"));
+
+            method.aload(1);
+            method.op(ClassWriter.DUP);
+            method.op_u2(ClassWriter.GETFIELD, writer.field_ref(INTERPRETER, "steps", "J"));
+            method.push_int(length);
+            method.op(ClassWriter.I2L);
+            method.op(ClassWriter.LADD);
+            method.op_u2(ClassWriter.PUTFIELD, writer.field_ref(INTERPRETER, "steps", "J"));
+
+            if (halts) {
+                method.aload(1);
+                method.push_int(1);
+                method.op_u2(ClassWriter.PUTFIELD, writer.field_ref(INTERPRETER, "is_finished", "Z"));
+            }
+
+            method.op(ClassWriter.RETURN);
+            if (exits != null && !halts) exits.add(new int[]{x, y, dir});
+        }
+    }
+}
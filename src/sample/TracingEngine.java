@@ -0,0 +1,146 @@
+package sample;
+
+/**
+ * Runs an interpreter with the help of {@link TraceCompiler}, compiling the parts of the program which run often.
+ *
+ * The engine interprets the program as usual, but every time the instruction pointer arrives somewhere a trace could
+ * start (where the program begins, and after a conditional jump, translocation or change of direction) it counts how
+ * many times it has been there. Once a position has been reached {@link #HOT_THRESHOLD} times the trace starting there
+ * is compiled, and from then on the trace runs instead of the interpreter. Traces end at places where one could start,
+ * so one hot trace usually leads straight into another.
+ *
+ * The interpreter is left in exactly the same state it would have been in had it run the same steps itself.
+ */
+public class TracingEngine {
+    /** How many times a trace's starting position has to be reached before it is compiled. */
+    static final int HOT_THRESHOLD = 50;
+
+    private static final int COUNTER_BITS = 12;
+    // marks a position which has been found to have no trace, so it isn't compiled again
+    private static final TraceCompiler.Trace NO_TRACE = new TraceCompiler.Trace(null, 0);
+
+    private final MyceliumInterpreter interpreter;
+    private final MyceliumProgram program;
+    private final TraceCompiler compiler;
+    // how many times each position has been reached, hashed into a fixed number of counters
+    private final int[] counters;
+    // compiled traces by the position they start at, in an open addressing hash table
+    private long[] keys;
+    private TraceCompiler.Trace[] traces;
+    private int trace_count;
+
+    public TracingEngine(MyceliumInterpreter interpreter) {
+        this.interpreter = interpreter;
+        this.program = interpreter.program;
+        this.compiler = new TraceCompiler(program);
+        this.counters = new int[1 << COUNTER_BITS];
+        this.keys = new long[64];
+        this.traces = new TraceCompiler.Trace[64];
+        this.trace_count = 0;
+    }
+
+    /**
+     * Runs the program for at most the given number of steps, like {@link MyceliumInterpreter#run(long)}.
+     * @param max_steps The most steps to run for.
+     * @return How many steps were run and whether the program halted.
+     */
+    public RunResult run(long max_steps) {
+        final MyceliumInterpreter in = interpreter;
+        final long start = in.steps;
+        final long end = max_steps > Long.MAX_VALUE - start ? Long.MAX_VALUE : start + max_steps;
+        boolean at_trace_start = true;
+        long next_sample = start + ResourceLimits.CHECK_INTERVAL;
+        in.start_run();
+
+        while (!in.is_finished && in.steps < end) {
+            if (in.steps >= next_sample) {
+                in.end_batch();
+                next_sample = in.steps + ResourceLimits.CHECK_INTERVAL;
+            }
+
+            if (at_trace_start) {
+                final TraceCompiler.Trace trace = find_trace(in.ip_x, in.ip_y, in.ip_dir);
+                if (trace != null && trace.max_steps <= end - in.steps) {
+                    trace.code.run(in);
+                    continue;
+                }
+            }
+
+            final int opcode = program.opcode_at(in.ip_y * program.width + in.ip_x);
+            in.step();
+            at_trace_start = opcode == MyceliumProgram.OP_CONDITIONAL_JUMP
+                    || opcode == MyceliumProgram.OP_TRANSLOCATE
+                    || opcode == MyceliumProgram.OP_DIRECTION;
+        }
+
+        return in.finish_run(start, in.is_finished ? RunResult.Reason.HALTED : RunResult.Reason.STEP_LIMIT);
+    }
+
+    public RunResult run_until_halt() {
+        return run(Long.MAX_VALUE);
+    }
+
+    /**
+     * @return How many traces have been compiled.
+     */
+    public int trace_count() {
+        int count = 0;
+        for (final TraceCompiler.Trace trace : traces) {
+            if (trace != null && trace != NO_TRACE) count++;
+        }
+
+        return count;
+    }
+
+    /**
+     * Finds the trace starting at a position, compiling it if the position has become hot.
+     * @return The trace, or null if there isn't one (yet).
+     */
+    private TraceCompiler.Trace find_trace(int x, int y, int dir) {
+        final long key = ((long) program.index_of(x, y) << 2) | dir;
+        final int hash = hash(key);
+
+        int slot = hash & (keys.length - 1);
+        while (traces[slot] != null) {
+            if (keys[slot] == key) {
+                final TraceCompiler.Trace trace = traces[slot];
+                return trace == NO_TRACE ? null : trace;
+            }
+            slot = (slot + 1) & (keys.length - 1);
+        }
+
+        if (++counters[hash & (counters.length - 1)] < HOT_THRESHOLD) return null;
+
+        final TraceCompiler.Trace trace = compiler.compile(x, y, dir);
+        insert(key, trace == null ? NO_TRACE : trace);
+        return trace;
+    }
+
+    private void insert(long key, TraceCompiler.Trace trace) {
+        if ((trace_count + 1) * 2 > keys.length) {
+            final long[] old_keys = keys;
+            final TraceCompiler.Trace[] old_traces = traces;
+            keys = new long[old_keys.length * 2];
+            traces = new TraceCompiler.Trace[old_traces.length * 2];
+            trace_count = 0;
+
+            for (int i = 0; i < old_keys.length; i++) {
+                if (old_traces[i] != null) insert(old_keys[i], old_traces[i]);
+            }
+        }
+
+        int slot = hash(key) & (keys.length - 1);
+        while (traces[slot] != null) {
+            slot = (slot + 1) & (keys.length - 1);
+        }
+
+        keys[slot] = key;
+        traces[slot] = trace;
+        trace_count++;
+    }
+
+    private static int hash(long key) {
+        final long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32);
+    }
+}